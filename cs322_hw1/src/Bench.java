@@ -0,0 +1,255 @@
+//
+// Benchmark harness for the IR1 interpreter engines.
+//
+// Measures throughput (runs of a program per second) of each engine
+// on IR1 files and on generated kernels with a size parameter:
+//  - loop(N):  a counting loop of N iterations
+//  - fib(N):   recursive fib(N)
+//  - array(N): fill and sum an N-element malloc'ed array
+//
+// Each measurement works like a JMH throughput benchmark: warmup
+// iterations (not reported), then measured iterations, each of which
+// runs the program back to back for a fixed time. Per benchmark it
+// reports ops/s (mean and standard deviation over the iterations),
+// the time per executed IR1 instruction (counted once, by the
+// reference engine), and, like JMH's GC profiler, the allocation
+// rate of the benchmark thread and the GC time. Program output
+// is discarded, but every engine's output is first checked against
+// the reference engine's.
+//
+// An op is one run of main only. Each engine loads the program
+// (resolves, links and compiles it) once, before the warmup, and
+// reuses one heap (emptied between runs); the load time is reported
+// separately. So the tiered engine is measured warm, its counters
+// carrying over from run to run.
+//
+// Usage: Bench [options] [<file>.ir ...]
+//  -engines=ref,vm,closure,tiered	engines to measure
+//  -warmup=W -iters=I -time=MS	iterations, and ms per iteration
+//  -loop=N,.. -fib=N,.. -array=N,..	kernel sizes (none: skip kernel)
+// With no files, the tests in src/tst and ../cs322_hw4/src/tst/sorting.ir
+// are used (paths relative to cs322_hw1).
+//
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import ir1.*;
+
+class Bench {
+
+  // An output sink that drops everything
+  //
+  static class Sink implements WritableByteChannel {
+    public int write(ByteBuffer b) {
+      int n = b.remaining();
+      b.position(b.limit());
+      return n;
+    }
+    public boolean isOpen() { return true; }
+    public void close() {}
+  }
+
+  static final Output sink = new Output(new Sink());
+
+  static String[] engines = { "ref", "vm", "closure", "tiered" };
+  static int warmup = 5, iters = 5;
+  static long time = 500;			// ms per iteration
+
+  // Load p on the given engine, on heap
+  //
+  static Interpreter load(String engine, IR1.Program p, Memory heap, Output out)
+    throws Exception {
+    Interpreter interp = new Interpreter(
+      engine.equals("ref") ? Interpreter.Engine.REF
+      : engine.equals("vm") ? Interpreter.Engine.VM
+      : engine.equals("closure") ? Interpreter.Engine.CLOSURE
+      : Interpreter.Engine.TIERED, heap, out);
+    interp.load(p);
+    return interp;
+  }
+
+  static String output(String engine, IR1.Program p) throws Exception {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    load(engine, p, new Memory(), new Output(buf)).run();
+    return buf.toString();
+  }
+
+  // The reference engine, counting the instructions it executes (in
+  // a subclass, so that the engine being measured doesn't count)
+  //
+  static class Counter extends IR1Interp1 {
+    long steps = 0;
+
+    Counter(Memory heap, Output out) { super(heap, out); }
+
+    int execute(IR1.Inst n) throws Exception {
+      steps++;
+      return super.execute(n);
+    }
+  }
+
+  // Thread-local allocation counter (HotSpot only; -1 if unavailable)
+  //
+  static long allocated() {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (mx instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) mx)
+	.getThreadAllocatedBytes(Thread.currentThread().getId());
+    return -1;
+  }
+
+  static long gcMillis() {
+    long t = 0;
+    for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+      t += Math.max(gc.getCollectionTime(), 0);
+    return t;
+  }
+
+  // Measure one program on every engine
+  //
+  static void bench(String name, IR1.Program p) throws Exception {
+    Counter counter = new Counter(new Memory(), sink);
+    counter.execute(p);
+    long steps = counter.steps;
+    String expected = output("ref", p);
+    for (String engine: engines) {
+      if (!output(engine, p).equals(expected)) {
+	System.out.printf("%-22s %-8s output differs from ref, skipped%n", name, engine);
+	continue;
+      }
+      Memory heap = new Memory();
+      long load0 = System.nanoTime();
+      Interpreter interp = load(engine, p, heap, sink);
+      long load = System.nanoTime() - load0;
+      for (int i = 0; i < warmup; i++)
+	iteration(interp);
+      double[] rates = new double[iters];
+      long ops = 0, nanos = 0;
+      long alloc0 = allocated(), gc0 = gcMillis();
+      for (int i = 0; i < iters; i++) {
+	long[] r = iteration(interp);
+	ops += r[0];
+	nanos += r[1];
+	rates[i] = r[0] * 1e9 / r[1];
+      }
+      long alloc = allocated() - alloc0, gc = gcMillis() - gc0;
+      double mean = 0, var = 0;
+      for (double r: rates)
+	mean += r / iters;
+      for (double r: rates)
+	var += (r - mean) * (r - mean) / Math.max(iters - 1, 1);
+      System.out.printf("%-22s %-8s %12.1f +- %-10.1f %10.2f %10.1f %10.1f %8d %10.1f%n",
+			name, engine, mean, Math.sqrt(var),
+			(double) nanos / ops / Math.max(steps, 1),
+			alloc0 < 0 ? Double.NaN : alloc * 1e9 / nanos / (1 << 20),
+			alloc0 < 0 ? Double.NaN : (double) alloc / ops, gc, load / 1e3);
+    }
+  }
+
+  // Run the loaded program back to back for time ms; returns
+  // {runs, nanos}
+  //
+  static long[] iteration(Interpreter interp) throws Exception {
+    long start = System.nanoTime(), end = start + time * 1000000;
+    long ops = 0, now;
+    do {
+      interp.heap.reset();
+      interp.run();
+      ops++;
+    } while ((now = System.nanoTime()) < end);
+    return new long[] { ops, now - start };
+  }
+
+  //-----------------------------------------------------------------
+  // Kernels
+  //-----------------------------------------------------------------
+  //
+  static String loop(int n) {
+    return "_main ()\n(i, s)\n{\n i = 0\n s = 0\nL0:\n if i >= " + n + " goto L1\n"
+      + " t1 = s + i\n s = t1\n t2 = i + 1\n i = t2\n goto L0\nL1:\n"
+      + " call _printInt(s)\n return\n}\n";
+  }
+
+  static String fib(int n) {
+    return "_fib (n)\n{\n if n > 1 goto L1\n return n\nL1:\n t1 = n - 1\n"
+      + " t2 = call _fib(t1)\n t3 = n - 2\n t4 = call _fib(t3)\n t5 = t2 + t4\n"
+      + " return t5\n}\n\n_main ()\n{\n t1 = call _fib(" + n + ")\n"
+      + " call _printInt(t1)\n return\n}\n";
+  }
+
+  static String array(int n) {
+    return "_main ()\n(a, i, s)\n{\n t1 = call _malloc(" + 4 * n + ")\n a = t1\n i = 0\n"
+      + "L0:\n if i >= " + n + " goto L1\n t2 = i * 4\n t3 = a + t2\n [t3] = i\n"
+      + " t4 = i + 1\n i = t4\n goto L0\nL1:\n i = 0\n s = 0\n"
+      + "L2:\n if i >= " + n + " goto L3\n t5 = i * 4\n t6 = a + t5\n t7 = [t6]\n"
+      + " t8 = s + t7\n s = t8\n t9 = i + 1\n i = t9\n goto L2\nL3:\n"
+      + " call _printInt(s)\n return\n}\n";
+  }
+
+  static IR1.Program parse(String src) throws Exception {
+    return new Parser(src.getBytes()).program();
+  }
+
+  static int[] sizes(String arg) {
+    if (arg.isEmpty())
+      return new int[0];
+    String[] a = arg.split(",");
+    int[] n = new int[a.length];
+    for (int i = 0; i < a.length; i++)
+      n[i] = Integer.parseInt(a[i]);
+    return n;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int[] loops = { 1000, 100000 }, fibs = { 15, 25 }, arrays = { 1000, 100000 };
+    List<String> files = new ArrayList<String>();
+    for (String arg: args) {
+      String val = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("-engines="))
+	engines = val.split(",");
+      else if (arg.startsWith("-warmup="))
+	warmup = Integer.parseInt(val);
+      else if (arg.startsWith("-iters="))
+	iters = Integer.parseInt(val);
+      else if (arg.startsWith("-time="))
+	time = Long.parseLong(val);
+      else if (arg.startsWith("-loop="))
+	loops = sizes(val);
+      else if (arg.startsWith("-fib="))
+	fibs = sizes(val);
+      else if (arg.startsWith("-array="))
+	arrays = sizes(val);
+      else if (arg.startsWith("-")) {
+	System.out.println("Usage: Bench [-engines=E,..] [-warmup=W] [-iters=I] [-time=MS]");
+	System.out.println("             [-loop=N,..] [-fib=N,..] [-array=N,..] [<file>.ir ...]");
+	return;
+      } else
+	files.add(arg);
+    }
+    if (files.isEmpty()) {
+      File[] tests = new File("src/tst").listFiles();
+      if (tests != null) {
+	Arrays.sort(tests);
+	for (File f: tests)
+	  if (f.getName().endsWith(".ir"))
+	    files.add(f.getPath());
+      }
+      files.add("../cs322_hw4/src/tst/sorting.ir");
+    }
+
+    System.out.printf("# %d warmup, %d measured iterations of %d ms%n", warmup, iters, time);
+    System.out.printf("%-22s %-8s %25s %10s %10s %10s %8s %10s%n", "benchmark", "engine",
+		      "ops/s", "ns/inst", "MB/s", "B/op", "gc ms", "load us");
+    for (String f: files)
+      bench(new File(f).getName(), Interpreter.parse(f));
+    for (int n: loops)
+      bench("loop(" + n + ")", parse(loop(n)));
+    for (int n: fibs)
+      bench("fib(" + n + ")", parse(fib(n)));
+    for (int n: arrays)
+      bench("array(" + n + ")", parse(array(n)));
+  }
+
+}
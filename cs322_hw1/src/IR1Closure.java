@@ -0,0 +1,374 @@
+//
+// Closure-compilation engine for IR1 functions.
+//
+// Each instruction is converted once into a Node object specialized
+// by its operator and by the kind of its operands (slot or int
+// literal), with all operands bound as final fields. The execution
+// loop just calls the nodes; no node tests an instruction type or
+// switches on an operator at run time, which keeps the call targets
+// simple enough for HotSpot to inline.
+//
+// Nodes are built from IR1VM's compiled code, which already carries
+// resolved slots, the constant pool and jump targets. Values use
+// IR1VM's tagged-long representation, and nodes that need run-time
+// state (heap, output, callees) are bound to their program's IR1VM.
+//
+import ir1.*;
+
+class IR1Closure {
+
+  // A compiled instruction
+  // - exec() returns the index of the next node, or -1 to return
+  //
+  abstract static class Node {
+    abstract int exec(long[] f) throws Exception;
+  }
+
+  // A function's closure tier
+  // - nodes stay null until the function is compiled (see IR1VM's
+  //   tiered mode)
+  //
+  static class Fn {
+    final IR1VM.Code code;
+    Node[] nodes;
+    int[] index;		// pc -> node index (for on-stack replacement)
+
+    Fn(IR1VM.Code code) { this.code = code; }
+  }
+
+
+  //-----------------------------------------------------------------
+  // Execution
+  //-----------------------------------------------------------------
+  //
+
+  // Compile the program, every function to closures; vm.run() then
+  // runs its main function
+  //
+  static void load(IR1VM vm, IR1.Program n) throws Exception {
+    vm.codes = vm.compile(n);
+    for (IR1VM.Code c: vm.codes)
+      compile(vm, c.fn);
+    vm.load(n);
+  }
+
+  // Run fn's nodes on frame, starting at node start
+  //
+  static long run(IR1VM vm, Fn fn, long[] frame, int start) throws Exception {
+    final Node[] nodes = fn.nodes;
+    vm.retVal = IR1VM.UND;
+    int i = start;
+    while (i >= 0)
+      i = nodes[i].exec(frame);
+    return vm.retVal;
+  }
+
+  //-----------------------------------------------------------------
+  // Compiler
+  //-----------------------------------------------------------------
+  //
+  static void compile(IR1VM vm, Fn fn) throws Exception {
+    int[] code = fn.code.code;
+
+    // node index of each instruction
+    int[] index = new int[code.length];
+    int cnt = 0;
+    for (int pc = 0; pc < code.length; pc += IR1VM.length(code, pc))
+      index[pc] = cnt++;
+
+    Node[] nodes = new Node[cnt];
+    for (int pc = 0; pc < code.length; pc += IR1VM.length(code, pc)) {
+      Node n = node(vm, fn.code, code, pc, index);
+      if (vm.profiler != null)
+	n = vm.profiler.instrument(vm, fn.code, pc, index[pc] + 1, n);
+      nodes[index[pc]] = n;
+    }
+    fn.index = index;
+    fn.nodes = nodes;
+  }
+
+  static boolean isConst(IR1VM.Code c, int slot) {
+    return slot >= c.constBase;
+  }
+
+  static long constVal(IR1VM.Code c, int slot) {
+    return c.consts[slot - c.constBase];
+  }
+
+  static boolean isIntConst(IR1VM.Code c, int slot) {
+    return isConst(c, slot) && IR1VM.tag(constVal(c, slot)) == IR1VM.INT;
+  }
+
+  static boolean isBoolConst(IR1VM.Code c, int slot) {
+    return isConst(c, slot) && IR1VM.tag(constVal(c, slot)) == IR1VM.BOOL;
+  }
+
+  // Build the node for the instruction at pc
+  //
+  static Node node(final IR1VM vm, IR1VM.Code c, int[] code, int pc, int[] index)
+    throws Exception {
+    final int op = code[pc];
+    final int next = index[pc] + 1;
+    switch (op) {
+    case IR1VM.ADD: case IR1VM.SUB: case IR1VM.MUL: case IR1VM.DIV:
+      return arith(c, op, code[pc+1], code[pc+2], code[pc+3], next);
+    case IR1VM.AND: case IR1VM.OR:
+      return logic(op, code[pc+1], code[pc+2], code[pc+3], next);
+    case IR1VM.EQ: case IR1VM.NE: case IR1VM.LT:
+    case IR1VM.LE: case IR1VM.GT: case IR1VM.GE:
+      return relop(c, op - IR1VM.EQ, code[pc+1], code[pc+2], code[pc+3], next);
+    case IR1VM.NEG: case IR1VM.NOT: case IR1VM.MOV:
+      return unary(c, op, code[pc+1], code[pc+2], next);
+    case IR1VM.LOAD:
+      return load(vm, code[pc+1], code[pc+2], code[pc+3], next);
+    case IR1VM.STORE:
+      return store(vm, c, code[pc+1], code[pc+2], code[pc+3], next);
+    case IR1VM.LOADX: {
+      final int d = code[pc+1], a = code[pc+2], i = code[pc+3];
+      final int k = code[pc+4], off = code[pc+5];
+      return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(vm.heap.load(IR1VM.asInt(f[a]) + IR1VM.asInt(f[i]) * k + off));
+	return next;
+      } };
+    }
+    case IR1VM.STOREX: {
+      final int a = code[pc+1], i = code[pc+2], k = code[pc+3];
+      final int off = code[pc+4], s = code[pc+5];
+      return new Node() { int exec(long[] f) throws Exception {
+	vm.heap.store(IR1VM.asInt(f[a]) + IR1VM.asInt(f[i]) * k + off, IR1VM.asWord(f[s]));
+	return next;
+      } };
+    }
+    case IR1VM.JMP: {
+      final int target = index[code[pc+1]];
+      return new Node() { int exec(long[] f) { return target; } };
+    }
+    case IR1VM.IFEQ: case IR1VM.IFNE: case IR1VM.IFLT:
+    case IR1VM.IFLE: case IR1VM.IFGT: case IR1VM.IFGE:
+      return branch(c, op - IR1VM.IFEQ, code[pc+1], code[pc+2],
+		    index[code[pc+3]], next);
+    case IR1VM.CALL: {
+      int[] args = new int[code[pc+3]];
+      for (int i = 0; i < args.length; i++)
+	args[i] = code[pc+4+i];
+      return call(vm, vm.codes[code[pc+1]], code[pc+2], args, next);
+    }
+    case IR1VM.RET: {
+      final int a = code[pc+1];
+      if (a < 0)
+	return new Node() { int exec(long[] f) { vm.retVal = IR1VM.UND; return -1; } };
+      return new Node() { int exec(long[] f) { vm.retVal = f[a]; return -1; } };
+    }
+    case IR1VM.PRINT: case IR1VM.PRINTB: case IR1VM.PRINTLN:
+      return print(vm, op, op == IR1VM.PRINTLN ? -1 : code[pc+1], next);
+    case IR1VM.MALLOC: {
+      final int d = code[pc+1], a = code[pc+2];
+      return new Node() { int exec(long[] f) throws Exception {
+	int loc = vm.heap.alloc(IR1VM.asInt(f[a]));
+	if (d >= 0)
+	  f[d] = IR1VM.intVal(loc);
+	return next;
+      } };
+    }
+    default:
+      throw new IR1Interp1.IntException("Bad opcode " + op + " at " + pc);
+    }
+  }
+
+  // Arithmetic: d = a op b
+  // - specialized for slot op slot, slot op int, and int op slot
+  //
+  static Node arith(IR1VM.Code c, int op, final int d, final int a, final int b,
+		    final int next) {
+    if (isIntConst(c, b) && !isConst(c, a)) {
+      final int k = (int) constVal(c, b);
+      switch (op) {
+      case IR1VM.ADD: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) + k); return next; } };
+      case IR1VM.SUB: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) - k); return next; } };
+      case IR1VM.MUL: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) * k); return next; } };
+      default: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) / k); return next; } };
+      }
+    }
+    if (isIntConst(c, a) && !isConst(c, b)) {
+      final int k = (int) constVal(c, a);
+      switch (op) {
+      case IR1VM.ADD: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(k + IR1VM.asInt(f[b])); return next; } };
+      case IR1VM.SUB: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(k - IR1VM.asInt(f[b])); return next; } };
+      case IR1VM.MUL: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(k * IR1VM.asInt(f[b])); return next; } };
+      default: return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(k / IR1VM.asInt(f[b])); return next; } };
+      }
+    }
+    // constants also live in frame slots, so this covers the rest
+    switch (op) {
+    case IR1VM.ADD: return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) + IR1VM.asInt(f[b])); return next; } };
+    case IR1VM.SUB: return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) - IR1VM.asInt(f[b])); return next; } };
+    case IR1VM.MUL: return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) * IR1VM.asInt(f[b])); return next; } };
+    default: return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.intVal(IR1VM.asInt(f[a]) / IR1VM.asInt(f[b])); return next; } };
+    }
+  }
+
+  static Node logic(int op, final int d, final int a, final int b, final int next) {
+    if (op == IR1VM.AND)
+      return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.boolVal(IR1VM.asBool(f[a]) & IR1VM.asBool(f[b])); return next; } };
+    return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.boolVal(IR1VM.asBool(f[a]) | IR1VM.asBool(f[b])); return next; } };
+  }
+
+  static Node unary(IR1VM.Code c, int op, final int d, final int a, final int next) {
+    if (op == IR1VM.NEG)
+      return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.intVal(-IR1VM.asInt(f[a])); return next; } };
+    if (op == IR1VM.NOT)
+      return new Node() { int exec(long[] f) throws Exception {
+	f[d] = IR1VM.boolVal(!IR1VM.asBool(f[a])); return next; } };
+    if (isConst(c, a)) {
+      final long k = constVal(c, a);
+      return new Node() { int exec(long[] f) { f[d] = k; return next; } };
+    }
+    return new Node() { int exec(long[] f) { f[d] = f[a]; return next; } };
+  }
+
+  // Relational Binop: d = a rop b
+  //
+  static Node relop(IR1VM.Code c, int rop, final int d, final int a, final int b,
+		    final int next) {
+    final Cond cond = cond(c, rop, a, b);
+    return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.boolVal(cond.test(f)); return next; } };
+  }
+
+  // CJump: if a rop b goto target
+  //
+  static Node branch(IR1VM.Code c, int rop, int a, int b, final int target,
+		     final int next) {
+    final Cond cond = cond(c, rop, a, b);
+    return new Node() { int exec(long[] f) throws Exception {
+      return cond.test(f) ? target : next; } };
+  }
+
+  // A compiled comparison
+  //
+  abstract static class Cond {
+    abstract boolean test(long[] f) throws Exception;
+  }
+
+  // Comparisons are specialized for slot rop slot, slot rop int, and
+  // slot ==/!= bool (the "if t == false goto L" idiom)
+  //
+  static Cond cond(IR1VM.Code c, int rop, final int a, final int b) {
+    if (isBoolConst(c, b) && rop <= 1) {
+      final boolean want = (constVal(c, b) == IR1VM.boolVal(true)) == (rop == 0);
+      return new Cond() { boolean test(long[] f) throws Exception {
+	return truth(f[a]) == want; } };
+    }
+    if (isIntConst(c, b)) {
+      final int k = (int) constVal(c, b);
+      final long kv = constVal(c, b);
+      switch (rop) {
+      case 0: return new Cond() { boolean test(long[] f) throws Exception {
+	return eq(f[a], kv); } };
+      case 1: return new Cond() { boolean test(long[] f) throws Exception {
+	return !eq(f[a], kv); } };
+      case 2: return new Cond() { boolean test(long[] f) throws Exception {
+	return IR1VM.asInt(f[a]) < k; } };
+      case 3: return new Cond() { boolean test(long[] f) throws Exception {
+	return IR1VM.asInt(f[a]) <= k; } };
+      case 4: return new Cond() { boolean test(long[] f) throws Exception {
+	return IR1VM.asInt(f[a]) > k; } };
+      default: return new Cond() { boolean test(long[] f) throws Exception {
+	return IR1VM.asInt(f[a]) >= k; } };
+      }
+    }
+    switch (rop) {
+    case 0: return new Cond() { boolean test(long[] f) throws Exception {
+      return eq(f[a], f[b]); } };
+    case 1: return new Cond() { boolean test(long[] f) throws Exception {
+      return !eq(f[a], f[b]); } };
+    case 2: return new Cond() { boolean test(long[] f) throws Exception {
+      return IR1VM.asInt(f[a]) < IR1VM.asInt(f[b]); } };
+    case 3: return new Cond() { boolean test(long[] f) throws Exception {
+      return IR1VM.asInt(f[a]) <= IR1VM.asInt(f[b]); } };
+    case 4: return new Cond() { boolean test(long[] f) throws Exception {
+      return IR1VM.asInt(f[a]) > IR1VM.asInt(f[b]); } };
+    default: return new Cond() { boolean test(long[] f) throws Exception {
+      return IR1VM.asInt(f[a]) >= IR1VM.asInt(f[b]); } };
+    }
+  }
+
+  static boolean eq(long l, long r) throws Exception {
+    if (IR1VM.tag(l) == IR1VM.INT && IR1VM.tag(r) == IR1VM.INT)
+      return l == r;
+    return IR1VM.compare(0, l, r);
+  }
+
+  // A bool, or a bool loaded from memory as an int
+  //
+  static boolean truth(long v) throws Exception {
+    if (IR1VM.tag(v) != IR1VM.BOOL && IR1VM.tag(v) != IR1VM.INT)
+      throw new IR1Interp1.IntException("Boolean value expected: " + IR1VM.describe(v));
+    return (int) v != 0;
+  }
+
+  static Node load(final IR1VM vm, final int d, final int a, final int off, final int next) {
+    return new Node() { int exec(long[] f) throws Exception {
+      f[d] = IR1VM.intVal(vm.heap.load(IR1VM.asInt(f[a]) + off));
+      return next;
+    } };
+  }
+
+  static Node store(final IR1VM vm, IR1VM.Code c, final int a, final int off, final int s,
+		    final int next) throws Exception {
+    // (a string constant is only an error if the store runs)
+    if (isIntConst(c, s) || isBoolConst(c, s)) {
+      final int k = (int) constVal(c, s);
+      return new Node() { int exec(long[] f) throws Exception {
+	vm.heap.store(IR1VM.asInt(f[a]) + off, k);
+	return next;
+      } };
+    }
+    return new Node() { int exec(long[] f) throws Exception {
+      vm.heap.store(IR1VM.asInt(f[a]) + off, IR1VM.asWord(f[s]));
+      return next;
+    } };
+  }
+
+  // Call, linked to the callee's compiled function
+  //
+  static Node call(final IR1VM vm, final IR1VM.Code callee, final int d, final int[] args,
+		   final int next) {
+    return new Node() { int exec(long[] f) throws Exception {
+      long[] nf = IR1VM.newFrame(callee);
+      for (int i = 0; i < args.length; i++)
+	nf[i] = f[args[i]];
+      long val = vm.invoke(callee, nf);
+      if (d >= 0)
+	f[d] = val;
+      return next;
+    } };
+  }
+
+  static Node print(final IR1VM vm, int op, final int a, final int next) {
+    if (op == IR1VM.PRINTLN)
+      return new Node() { int exec(long[] f) throws Exception {
+	vm.out.println(); return next; } };
+    if (op == IR1VM.PRINTB)
+      return new Node() { int exec(long[] f) throws Exception {
+	vm.out.printBool(truth(f[a])); return next; } };
+    return new Node() { int exec(long[] f) throws Exception {
+      vm.print(f[a]); return next; } };
+  }
+
+}
@@ -7,7 +7,7 @@ import java.util.*;
 import java.io.*;
 import ir1.*;
 
-public class IR1Interp1 {
+public class IR1Interp1 implements Memory.Roots {
 
   static class IntException extends Exception {
     public IntException(String msg) { super(msg); }
@@ -75,55 +75,121 @@ public class IR1Interp1 {
   // For IR1, they need to be managed at per function level.
   // 
 
-  // ... code needed ...
-  static IR1.Src[] temp;
-  static Stack<Env> envStack = new Stack<Env>();
-  static Stack<VarEnv> varEnvStack = new Stack<VarEnv>();
-  
-  static class VarEnv {
-	HashMap<String,Val> varMap = null;	  		// var table  
-  
-	VarEnv() {
-		varMap = new HashMap<String,Val>();
-	}
-	public void extendVar(String key, Val value) throws Exception{
-		varMap.put(key, value);
-	}
-	public Val lookupVar(String key) throws Exception {
-		if(varMap.containsKey(key))
-				return varMap.get(key);
-		throw new Exception("Variable " + key + " not defined!");
-	}
+  // Each function's params, locals and temps are given dense slot
+  // numbers once, at load time (see resolve()). A function's
+  // activation is then just a Val[] frame indexed by those slots,
+  // and jump labels are pre-resolved to instruction indexes.
+  //
+  // All run-time state lives in an IR1Interp1 instance (one per 
+  // program run), so programs can run concurrently (see Interpreter).
+  //
+
+  // A call target
+  // - every call site is linked once, at load time, to an entry of
+  //   the callees table (see link()): the builtins first, then the
+  //   program's functions
+  // - call() returns an execution status (see below)
+  //
+  abstract static class Callee {
+    abstract int call(IR1Interp1 in, IR1.Call n) throws Exception;
   }
-  
-  static class Env {
-    HashMap<String,Integer> labelMap = null;  	// label table
-	HashMap<Integer,Val> tempMap = null;	  	// temp table
-	
-	Env() {
-		labelMap = new HashMap<String,Integer>();
-		tempMap = new HashMap<Integer,Val>();	
-	}
-	
-	public void extendLabel(String key, int value) throws Exception {
-		labelMap.put(key, value);
-	}
-	public void extendTemp(int key, Val value) throws Exception {
-		tempMap.put(key, value);
-	}
-	
-	public int lookupLabel(String key) throws Exception {
-		if(labelMap.containsKey(key))
-				return labelMap.get(key);
-		throw new Exception("Label " + key + " not defined!");
-	}
-	public Val lookupTemp(int key) throws Exception {
-		if(tempMap.containsKey(key))
-				return tempMap.get(key);
-		throw new Exception("Temp " + key + " not defined!");
-	}
+
+  // A resolved function
+  //
+  static class FuncInfo extends Callee {
+    final IR1.Func func;
+    final int frameSize;	// number of slots in a frame
+    Val[][] pool = new Val[4][];	// frames free for reuse
+    int npool = 0;
+
+    FuncInfo(IR1.Func func, int frameSize) {
+      this.func = func;
+      this.frameSize = frameSize;
+    }
+
+    // Push an activation for the call; the dispatch loop continues
+    // in it. Params occupy the first slots of the callee's frame.
+    //
+    int call(IR1Interp1 in, IR1.Call n) throws Exception {
+      Val[] newFrame = npool > 0 ? pool[--npool] : new Val[frameSize];
+      for (int i = 0; i < func.params.length; i++)
+        newFrame[i] = in.execute(n.args[i]);
+      in.push(this, newFrame);
+      return CALL;
+    }
+
+    void release(Val[] frame) {
+      Arrays.fill(frame, null);
+      if (npool == pool.length)
+        pool = Arrays.copyOf(pool, 2 * npool);
+      pool[npool++] = frame;
+    }
   }
-  
+
+  // Builtin functions
+  //
+  static final String[] builtinNames = {
+    "printInt", "printBool", "printStr", "malloc"
+  };
+
+  static final Callee[] builtins = {
+    new Callee() { int call(IR1Interp1 in, IR1.Call n) throws Exception {
+      assert ((n.args != null) && (n.args.length == 1));
+      in.print(in.execute(n.args[0]));
+      return CONTINUE;
+    } },
+    new Callee() { int call(IR1Interp1 in, IR1.Call n) throws Exception {
+      assert ((n.args != null) && (n.args.length == 1));
+      in.out.printBool(truth(in.execute(n.args[0])));
+      return CONTINUE;
+    } },
+    new Callee() { int call(IR1Interp1 in, IR1.Call n) throws Exception {
+      if ((n.args == null) || (n.args.length == 0))
+        in.out.println();
+      else
+        in.print(in.execute(n.args[0]));
+      return CONTINUE;
+    } },
+    new Callee() { int call(IR1Interp1 in, IR1.Call n) throws Exception {
+      assert (n.args != null);
+      int size = in.execute(n.args[0]).asInt();
+      in.assign(n.rdst, new IntVal(in.storageAllocation(size)));
+      return CONTINUE;
+    } },
+  };
+
+  // The current function's frame
+  //
+  Val[] frame;
+
+  // Activation stack
+  // - the function, frame and current inst index of every active
+  //   call (idxs[i] is only up to date below the top); calls push an
+  //   activation and returns pop one, so calls don't recurse in Java
+  // - the frames are also the GC's roots
+  //
+  FuncInfo[] funcs = new FuncInfo[64];
+  Val[][] frames = new Val[64][];
+  int[] idxs = new int[64];
+  int depth = 0;
+
+  void push(FuncInfo f, Val[] newFrame) {
+    if (depth == frames.length) {
+      funcs = Arrays.copyOf(funcs, 2 * depth);
+      frames = Arrays.copyOf(frames, 2 * depth);
+      idxs = Arrays.copyOf(idxs, 2 * depth);
+    }
+    funcs[depth] = f;
+    frames[depth++] = newFrame;
+    frame = newFrame;
+  }
+
+  void pop() {
+    funcs[--depth] = null;
+    frames[depth] = null;
+    frame = depth > 0 ? frames[depth-1] : null;
+  }
+
   //-----------------------------------------------------------------
   // Global variables and constants
   //-----------------------------------------------------------------
@@ -133,27 +199,53 @@ public class IR1Interp1 {
   //
 
   // Function lookup table
-  // - maps function names to their AST nodes
+  // - maps function names to their resolved AST nodes
   //
-  static HashMap<String, IR1.Func> funcMap; 	
+  HashMap<String, FuncInfo> funcMap;
+
+  // Call target table
+  // - indexed by IR1.Call.callee
+  //
+  Callee[] callees;
 
   // Heap memory
   // - for handling 'malloc'ed data
-  // - you need to define alloc and access methods for it
+  // - byte-addressed, holding 4-byte ints (see Memory)
   //
-  static ArrayList<Val> heap;		
+  final Memory heap;
+
+  // Output of the print functions
+  //
+  final Output out;
 
   // Return value
   // - for passing return value from callee to caller
   //
-  static Val retVal;
+  Val retVal;
+
+  IR1Interp1(Memory heap, Output out) {
+    this.heap = heap;
+    this.out = out;
+    heap.roots = this;
+  }
+
+  public void markRoots(Memory heap) {
+    for (int i = 0; i < depth; i++)
+      for (Val v: frames[i])
+        if (v instanceof IntVal)
+          heap.mark(((IntVal) v).i);
+    if (retVal instanceof IntVal)
+      heap.mark(((IntVal) retVal).i);
+  }
 
   // Execution status
   // - tells whether to continue with the nest inst, to jump to
-  //   a new target inst, or to return to the caller
+  //   a new target inst, to return to the caller, or to start
+  //   executing a newly pushed activation
   //
   static final int CONTINUE = 0;
   static final int RETURN = -1;	
+  static final int CALL = -2;
 
   //-----------------------------------------------------------------
   // The main method
@@ -162,16 +254,121 @@ public class IR1Interp1 {
   // 1. Open an IR1 program file. 
   // 2. Call the IR1 AST parser to read in the program and 
   //    convert it to an AST (rooted at an IR1.Program node).
-  // 3. Invoke the interpretation process on the root node.
+  // 3. Invoke the interpretation process on the root node:
+  //    by default the program is compiled to bytecode and run on
+  //    IR1VM; with -closure it is compiled further into closures
+  //    (IR1Closure); with -tiered it starts on IR1VM and hot 
+  //    functions and loops move to closures (-tiered=N sets the
+  //    call threshold to N, and the loop threshold to 10*N); with 
+  //    -profile it runs on closures instrumented by a Profiler, which
+  //    writes <file>.prof and <file>.folded at exit; with 
+  //    -ref the AST is interpreted directly (the reference mode).
+  //
+  // With -batch[=N], all the files given are run concurrently (on N
+  // threads, default one per processor), each on its own Interpreter
+  // with the default engine; each program's output goes to 
+  // <file>.out, and failures are reported on stderr.
+  //
+  // A leading -gcstats prints a summary of the heap's garbage 
+  // collections on stderr at exit.
   //
   public static void main(String [] args) throws Exception {
-    if (args.length == 1) {
-      FileInputStream stream = new FileInputStream(args[0]);
-      IR1.Program p = new ir1Parser(stream).Program();
-      stream.close();
-      execute(p);
-    } else {
-      System.out.println("You must provide an input file name.");
+    if (args.length >= 1 && args[0].startsWith("-batch")) {
+      batch(args);
+      return;
+    }
+    if (args.length >= 1 && args[0].startsWith("-sched")) {
+      schedule(args);
+      return;
+    }
+    boolean gcStats = args.length > 1 && args[0].equals("-gcstats");
+    if (gcStats)
+      args = Arrays.copyOfRange(args, 1, args.length);
+    String mode = args.length == 2 ? args[0] : "";
+    Interpreter.Engine engine = Interpreter.Engine.VM;
+    int threshold = 0;
+    if (mode.startsWith("-tiered=")) {
+      threshold = Integer.parseInt(mode.substring(8));
+      mode = "-tiered";
+    }
+    if (mode.equals("-ref"))
+      engine = Interpreter.Engine.REF;
+    else if (mode.equals("-closure") || mode.equals("-profile"))
+      engine = Interpreter.Engine.CLOSURE;
+    else if (mode.equals("-tiered"))
+      engine = Interpreter.Engine.TIERED;
+    else if (args.length != 1) {
+      System.out.println("Usage: IR1Interp1 [-gcstats] [-ref | -closure | -tiered[=N] | -profile] <file>.ir");
+      System.out.println("       IR1Interp1 -batch[=N] <file>.ir ...");
+      System.out.println("       IR1Interp1 -sched[=N] [-slice=F] [-fuel=F] [-heap=B] [-stack=B] <file>.ir ...");
+      return;
+    }
+    IR1.Program p = Interpreter.parse(args[args.length-1]);
+    Interpreter interp = new Interpreter(engine, Output.stdout());
+    if (threshold > 0) {
+      interp.callThreshold = threshold;
+      interp.loopThreshold = 10 * threshold;
+    }
+    try {
+      if (mode.equals("-profile")) {
+        interp.profiler = new Profiler();
+        try {
+          interp.execute(p);
+        } finally {
+          interp.profiler.write(baseName(args[1]));
+        }
+      } else {
+        interp.execute(p);
+      }
+    } finally {
+      if (gcStats)
+        System.err.println(interp.heap.stats());
+    }
+  }
+
+  static String baseName(String file) {
+    return file.endsWith(".ir") ? file.substring(0, file.length() - 3) : file;
+  }
+
+  static void batch(String[] args) throws Exception {
+    int nthreads = args[0].startsWith("-batch=") 
+      ? Integer.parseInt(args[0].substring(7))
+      : Runtime.getRuntime().availableProcessors();
+    List<String> files = Arrays.asList(args).subList(1, args.length);
+    for (Interpreter.Result r: 
+           Interpreter.runAll(files, Interpreter.Engine.VM, nthreads, true)) {
+      if (r.error != null)
+        System.err.println(r.file + ": " + r.error);
+    }
+  }
+
+  // Run the files side by side on N carrier threads, in slices of F
+  // fuel (calls and back edges), with optional per-program fuel,
+  // heap and stack quotas; output goes to <file>.out
+  //
+  static void schedule(String[] args) throws Exception {
+    Scheduler s = new Scheduler(args[0].startsWith("-sched=") 
+      ? Integer.parseInt(args[0].substring(7))
+      : Runtime.getRuntime().availableProcessors());
+    s.outFiles = true;
+    int i = 1;
+    for (; i < args.length && args[i].startsWith("-"); i++) {
+      long v = Long.parseLong(args[i].substring(args[i].indexOf('=') + 1));
+      if (args[i].startsWith("-slice="))
+        s.slice = v;
+      else if (args[i].startsWith("-fuel="))
+        s.fuelQuota = v;
+      else if (args[i].startsWith("-heap="))
+        s.heapQuota = v;
+      else if (args[i].startsWith("-stack="))
+        s.stackQuota = v;
+      else
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+    }
+    List<String> files = Arrays.asList(args).subList(i, args.length);
+    for (Interpreter.Result r: s.runAll(files)) {
+      if (r.error != null)
+        System.err.println(r.file + ": " + r.error);
     }
   }
 
@@ -183,17 +380,187 @@ public class IR1Interp1 {
   // Program ---
   //  Func[] funcs;
   //
-  // 1. Establish the function lookup map
-  // 2. Lookup 'main' in funcMap, and 
-  // 3. start interpreting from main's AST node
+  // load():
+  // 1. Resolve each function and establish the function lookup map
+  // 2. Link every call site to its callee
+  // 3. Lookup 'main' in funcMap
+  // run() (any number of times after load()):
+  // 4. start interpreting from main's AST node
   //
-  public static void execute(IR1.Program n) throws Exception { 
-    funcMap = new HashMap<String,IR1.Func>();
-    heap = new ArrayList<Val>();
+  public void execute(IR1.Program n) throws Exception { 
+    load(n);
+    run();
+  }
+
+  FuncInfo main;
+
+  void load(IR1.Program n) throws Exception { 
+    funcMap = new HashMap<String,FuncInfo>();
+    for (IR1.Func f: n.funcs)
+      funcMap.put(f.name, resolve(f));
+    link(n);
+    main = funcMap.get("main");
+    if (main == null)
+      throw new IntException("Function main not defined!");
+  }
+
+  void run() throws Exception { 
     retVal = new UndVal();
+    depth = 0;
+    execute(main, new Val[main.frameSize]);
+  }
+
+  //-----------------------------------------------------------------
+  // Load-time resolution
+  //-----------------------------------------------------------------
+  //
+  // Programs from Parser or IR1Binary come with their Ids and Temps
+  // interned, slots and label targets already assigned (see Symbols):
+  // the slots are the frame layout, and only undefined labels are left
+  // to check. Otherwise slots are laid out as params, then locals,
+  // then temps (in order of first appearance). Every Id and Temp
+  // occurrence in the code is stamped with its slot, and every jump
+  // label with its target.
+  //
+  static FuncInfo resolve(IR1.Func n) throws Exception {
+    if (n.syms != null) {
+      for (IR1.Inst inst: n.code) {
+	IR1.Label l = inst instanceof IR1.CJump ? ((IR1.CJump)inst).lab
+	  : inst instanceof IR1.Jump ? ((IR1.Jump)inst).lab : null;
+	if (l != null && l.target < 0)
+	  throw new IntException("Label " + l.name + " not defined!");
+      }
+      return new FuncInfo(n, n.syms.length);
+    }
+    HashMap<String,Integer> varSlots = new HashMap<String,Integer>();
+    HashMap<Integer,Integer> tempSlots = new HashMap<Integer,Integer>();
+    HashMap<String,Integer> labelMap = new HashMap<String,Integer>();
+    for (String s: n.params)
+      varSlots.put(s, varSlots.size());
+    for (String s: n.locals)
+      if (!varSlots.containsKey(s))
+        varSlots.put(s, varSlots.size());
+    for (int i = 0; i < n.code.length; i++)
+      if (n.code[i] instanceof IR1.LabelDec)
+        labelMap.put(((IR1.LabelDec)n.code[i]).name, i);
+
+    Slots slots = new Slots(varSlots, tempSlots);
+    for (IR1.Inst inst: n.code) {
+      if (inst instanceof IR1.Binop) {
+        IR1.Binop b = (IR1.Binop)inst;
+        slots.resolve(b.src1);
+        slots.resolve(b.src2);
+        slots.resolve(b.dst);
+      } else if (inst instanceof IR1.Unop) {
+        slots.resolve(((IR1.Unop)inst).src);
+        slots.resolve(((IR1.Unop)inst).dst);
+      } else if (inst instanceof IR1.Move) {
+        slots.resolve(((IR1.Move)inst).src);
+        slots.resolve(((IR1.Move)inst).dst);
+      } else if (inst instanceof IR1.Load) {
+        slots.resolve(((IR1.Load)inst).addr.base);
+        slots.resolve(((IR1.Load)inst).dst);
+      } else if (inst instanceof IR1.Store) {
+        slots.resolve(((IR1.Store)inst).addr.base);
+        slots.resolve(((IR1.Store)inst).src);
+      } else if (inst instanceof IR1.Call) {
+        for (IR1.Src a: ((IR1.Call)inst).args)
+          slots.resolve(a);
+        slots.resolve(((IR1.Call)inst).rdst);
+      } else if (inst instanceof IR1.Return) {
+        slots.resolve(((IR1.Return)inst).val);
+      } else if (inst instanceof IR1.CJump) {
+        IR1.CJump c = (IR1.CJump)inst;
+        slots.resolve(c.src1);
+        slots.resolve(c.src2);
+        c.lab.target = lookupLabel(labelMap, c.lab.name);
+      } else if (inst instanceof IR1.Jump) {
+        IR1.Jump j = (IR1.Jump)inst;
+        j.lab.target = lookupLabel(labelMap, j.lab.name);
+      }
+    }
+    return new FuncInfo(n, slots.finish());
+  }
+
+  // Build the callees table, and stamp every call site with its
+  // callee's index in it
+  //
+  void link(IR1.Program n) throws Exception {
+    HashMap<String,Integer> calleeIdx = new HashMap<String,Integer>();
+    callees = new Callee[builtins.length + n.funcs.length];
+    for (int i = 0; i < builtins.length; i++) {
+      callees[i] = builtins[i];
+      calleeIdx.put(builtinNames[i], i);
+    }
+    for (int i = 0; i < n.funcs.length; i++) {
+      callees[builtins.length + i] = funcMap.get(n.funcs[i].name);
+      if (!calleeIdx.containsKey(n.funcs[i].name))	// builtins come first
+        calleeIdx.put(n.funcs[i].name, builtins.length + i);
+    }
     for (IR1.Func f: n.funcs)
-      funcMap.put(f.name, f);
-    execute(funcMap.get("main"));
+      for (IR1.Inst inst: f.code)
+        if (inst instanceof IR1.Call) {
+          IR1.Call c = (IR1.Call)inst;
+          Integer idx = calleeIdx.get(c.name);
+          if (idx == null)
+            throw new IntException("Function " + c.name + " not defined!");
+          if (callees[idx] instanceof FuncInfo && c.args.length 
+              < ((FuncInfo)callees[idx]).func.params.length)
+            throw new IntException("Too few args in call: " + c);
+          c.callee = idx;
+        }
+  }
+
+  static int lookupLabel(HashMap<String,Integer> labelMap, String key) 
+    throws Exception {
+    if (labelMap.containsKey(key))
+      return labelMap.get(key);
+    throw new IntException("Label " + key + " not defined!");
+  }
+
+  // Slot assignment for Id and Temp operands. Temps are numbered 
+  // after all vars, so slot numbers are only final once the whole
+  // function has been scanned.
+  //
+  static class Slots {
+    HashMap<String,Integer> varSlots;
+    HashMap<Integer,Integer> tempSlots;
+    ArrayList<IR1.Temp> temps = new ArrayList<IR1.Temp>();
+
+    Slots(HashMap<String,Integer> varSlots, 
+          HashMap<Integer,Integer> tempSlots) {
+      this.varSlots = varSlots;
+      this.tempSlots = tempSlots;
+    }
+
+    void resolve(Object n) {
+      if (n instanceof IR1.Id) {
+        IR1.Id id = (IR1.Id)n;
+        Integer slot = varSlots.get(id.name);
+        if (slot == null) {
+          slot = varSlots.size();
+          varSlots.put(id.name, slot);
+        }
+        id.slot = slot;
+      } else if (n instanceof IR1.Temp) {
+        IR1.Temp t = (IR1.Temp)n;
+        Integer slot = tempSlots.get(t.num);
+        if (slot == null) {
+          slot = tempSlots.size();
+          tempSlots.put(t.num, slot);
+        }
+        temps.add(t);
+        t.slot = slot;
+      }
+    }
+
+    // Move temps past the var slots; returns the frame size
+    //
+    int finish() {
+      for (IR1.Temp t: temps)
+        t.slot += varSlots.size();
+      return varSlots.size() + tempSlots.size();
+    }
   }
 
   // Func ---
@@ -202,43 +569,52 @@ public class IR1Interp1 {
   //  Var[] locals;
   //  Inst[] code;
   //
-  // 1. Collect label decls information and store them in
-  //    a label-lookup table for later use.
-  // 2. Execute the fetch-and-execute loop.
-  //
-  static void execute(IR1.Func n) throws Exception { 
-	
-	VarEnv varEnv = varEnvStack.push(new VarEnv());  
-	  
-	for (String s: n.locals)
-		varEnv.extendVar(s, null);
-    
-	Env env = envStack.push(new Env());
-	
-	for (int i = 0; i < n.code.length; i++) {
-      if ((n.code[i] instanceof IR1.LabelDec)) {
-        env.extendLabel(((IR1.LabelDec)n.code[i]).name, Integer.valueOf(i));
-      }
-    }
-    
-	// The fetch-and-execute loop
+  // Run f, and every function it calls, in one dispatch loop:
+  // 1. Push an activation with the given frame (params already in
+  //    their slots), and execute the fetch-and-execute loop.
+  // 2. A call pushes the callee's activation (see FuncInfo.call);
+  //    the loop saves the caller's inst index and continues at the
+  //    callee's first inst.
+  // 3. A return pops the activation, releases its frame, and resumes
+  //    the caller after its call inst (assigning retVal to the call's
+  //    rdst); returning from f itself ends the loop.
+  //
+  void execute(FuncInfo f, Val[] newFrame) throws Exception { 
+    int base = depth;
+    push(f, newFrame);
+    IR1.Inst[] code = f.func.code;
+
+    // The fetch-and-execute loop
     int idx = 0;
-    while (idx < n.code.length) {
-      int next = execute(n.code[idx]);
-      if (next == CONTINUE)
-		idx++; 
-      else if (next == RETURN)
-        break;
-      else
-	idx = next;
+    while (true) {
+      int next = idx < code.length ? execute(code[idx]) : RETURN;
+      if (next == CONTINUE) {
+        idx++; 
+      } else if (next == CALL) {
+        idxs[depth-2] = idx;
+        code = funcs[depth-1].func.code;
+        idx = 0;
+      } else if (next == RETURN) {
+        FuncInfo done = funcs[depth-1];
+        Val[] doneFrame = frames[depth-1];
+        pop();
+        if (depth != base)		// the base frame is the caller's
+          done.release(doneFrame);
+        if (depth == base)
+          return;
+        code = funcs[depth-1].func.code;
+        idx = idxs[depth-1];
+        assign(((IR1.Call) code[idx]).rdst, retVal);
+        idx++;
+      } else {
+        idx = next;
+      }
     }
-	
-	envStack.pop(); 
   }
 
   // Dispatch execution to an individual Inst node.
   //
-  static int execute(IR1.Inst n) throws Exception {
+  int execute(IR1.Inst n) throws Exception {
     if (n instanceof IR1.Binop)    return execute((IR1.Binop) n);
     if (n instanceof IR1.Unop) 	   return execute((IR1.Unop) n);
     if (n instanceof IR1.Move) 	   return execute((IR1.Move) n);
@@ -252,14 +628,12 @@ public class IR1Interp1 {
     throw new IntException("Unknown Inst: " + n);
   }
   
-  static void assign(IR1.Dest dst, Val val) throws Exception
+  void assign(IR1.Dest dst, Val val) throws Exception
   {
     if ((dst instanceof IR1.Temp)) {
-      envStack.peek().extendTemp(Integer.valueOf(((IR1.Temp)dst).num), val);
+      frame[((IR1.Temp)dst).slot] = val;
     } else if ((dst instanceof IR1.Id)) {
-      if (varEnvStack.empty())
-    	  varEnvStack.push(new VarEnv());
-      varEnvStack.peek().extendVar(((IR1.Id)dst).name, val);
+      frame[((IR1.Id)dst).slot] = val;
     }
   }
 
@@ -276,13 +650,16 @@ public class IR1Interp1 {
   //  Dest dst;
   //  Src src1, src2;
   //
-  static int execute(IR1.Binop n) throws Exception {
+  int execute(IR1.Binop n) throws Exception {
 	Val lval = execute(n.src1);
     Val rval = execute(n.src2);
     Val res = null;
-    if (((lval instanceof IntVal)) && ((rval instanceof IntVal)))
+    if (n.op instanceof IR1.ROP)
+    {
+      res = new BoolVal(compare((IR1.ROP)n.op, lval, rval));
+    }
+    else if (((lval instanceof IntVal)) && ((rval instanceof IntVal)))
     {
-
       int l = lval.asInt();
       int r = rval.asInt();
       
@@ -327,7 +704,7 @@ public class IR1Interp1 {
   //  Dest dst;
   //  Src src;
   //
-  static int execute(IR1.Unop n) throws Exception {
+  int execute(IR1.Unop n) throws Exception {
 	Val val = execute(n.src);
     Val res = null;
     if (n.op == IR1.UOP.NEG)
@@ -345,7 +722,7 @@ public class IR1Interp1 {
   //  Dest dst;
   //  Src src;
   //
-  static int execute(IR1.Move n) throws Exception {
+  int execute(IR1.Move n) throws Exception {
 
 	Val val = execute(n.src);
     assign(n.dst, val);
@@ -356,13 +733,12 @@ public class IR1Interp1 {
   //  Dest dst;
   //  Addr addr;
   //
-  static int execute(IR1.Load n) throws Exception {
+  // Memory holds plain ints, so the loaded value is always an IntVal
+  // (a stored bool comes back as 0 or 1, as in the X86 code).
+  //
+  int execute(IR1.Load n) throws Exception {
 	int loc = execute(n.addr);
-    Val val = (Val)heap.get(loc);
-    if (val == null) {
-      throw new IntException("Can't find a value at location " + loc);
-    }
-    assign(n.dst, val);
+    assign(n.dst, new IntVal(heap.load(loc)));
 	return CONTINUE;
   }
 
@@ -370,10 +746,15 @@ public class IR1Interp1 {
   //  Addr addr;
   //  Src src;
   //
-  static int execute(IR1.Store n) throws Exception {
+  int execute(IR1.Store n) throws Exception {
 	Val val = execute(n.src);
     int loc = execute(n.addr);
-    heap.set(loc, val);
+    if (val instanceof IntVal)
+      heap.store(loc, val.asInt());
+    else if (val instanceof BoolVal)
+      heap.store(loc, val.asBool() ? 1 : 0);
+    else
+      throw new IntException("Can't store " + val + " in memory");
 	return CONTINUE;
   }
 
@@ -382,16 +763,24 @@ public class IR1Interp1 {
   //  Src src1, src2;
   //  Label lab;
   //
-  static int execute(IR1.CJump n) throws Exception {
-	boolean cond;
+  int execute(IR1.CJump n) throws Exception {
 	Val lval = execute(n.src1);
     Val rval = execute(n.src2);
-    
+    if (compare(n.op, lval, rval)) {
+      return n.lab.target;
+    }
+	return CONTINUE;
+  }	
+
+  // Evaluate a relational op; shared by CJump and relational Binops.
+  //
+  static boolean compare(IR1.ROP op, Val lval, Val rval) throws Exception {
+    boolean cond;
     if (((lval instanceof IntVal)) && ((rval instanceof IntVal)))
     {
       int l = lval.asInt();
       int r = rval.asInt();
-      switch ((IR1.ROP)n.op)
+      switch (op)
       {
       case EQ: 
         cond = l == r; break;
@@ -406,42 +795,41 @@ public class IR1Interp1 {
       case GE: 
         cond = l >= r; break;
       default: 
-        throw new IntException("Wrong op in CJump: " + n.op);
+        throw new IntException("Wrong relational op: " + op);
       }
     }
-    else
-    { 
-      if (((lval instanceof BoolVal)) && ((rval instanceof BoolVal)))
-      {
-        boolean l = lval.asBool();
-        boolean r = rval.asBool();
-        switch (n.op)
-        {
-        case EQ: 
-          cond = l == r; break;
-        case NE: 
-          cond = l != r; break;
-        default: 
-          throw new IntException("Wrong op in CJump: " + n.op);
-        }
-      }
-      else
+    else if (((lval instanceof BoolVal) || (lval instanceof IntVal)) 
+             && ((rval instanceof BoolVal) || (rval instanceof IntVal)))
+    {
+      // bools, or a bool and a loaded int (memory only holds ints)
+      boolean l = truth(lval);
+      boolean r = truth(rval);
+      switch (op)
       {
-        throw new IntException("Error in CJump: " + n);
+      case EQ: 
+        cond = l == r; break;
+      case NE: 
+        cond = l != r; break;
+      default: 
+        throw new IntException("Wrong relational op: " + op);
       }
     }
-    
-    if (cond) {
-      return ((Integer)envStack.peek().lookupLabel(n.lab.name)).intValue();
+    else
+    {
+      throw new IntException("Bad operands for " + op + ": " + lval + ", " + rval);
     }
-	return CONTINUE;
-  }	
+    return cond;
+  }
+
+  static boolean truth(Val val) throws Exception {
+    return (val instanceof IntVal) ? val.asInt() != 0 : val.asBool();
+  }
 
   // Jump ---
   //  Label lab;
   //
-  static int execute(IR1.Jump n) throws Exception {
-	return ((Integer)envStack.peek().lookupLabel(n.lab.name)).intValue();
+  int execute(IR1.Jump n) throws Exception {
+	return n.lab.target;
   }	
 
   // Call ---
@@ -449,68 +837,32 @@ public class IR1Interp1 {
   //  Src[] args;
   //  Dest rdst;
   //
-  static int execute(IR1.Call n) throws Exception {
-	VarEnv varEnv = varEnvStack.peek();
-	
-	if ((n.name.equals("printInt")) || (n.name.equals("printBool")))
-    {
-      assert ((n.args != null) && (n.args.length == 1));
-      Val val = execute(n.args[0]);
-      System.out.println(val);
-    }
-    else if (n.name.equals("printStr"))
-    {
-      if ((n.args == null) || (n.args.length == 0))
-      {
-        System.out.println();
-      }
-      else
-      {
-        Val val = execute(n.args[0]);
-        System.out.println(val);
-      }
-    }
-    else if (n.name.equals("malloc"))
-    {
-      assert (n.args != null);
-      int size = execute(n.args[0]).asInt();
-      int loc = storageAllocation(size);
-      assign(n.rdst, new IntVal(loc));
-    }
+  // Builtins run in place; function calls return CALL, and the
+  // dispatch loop continues in the callee (see execute(FuncInfo..)).
+  //
+  int execute(IR1.Call n) throws Exception {
+    return callees[n.callee].call(this, n);
+  }
+
+  void print(Val val) throws Exception {
+    if (val instanceof IntVal)
+      out.printInt(((IntVal) val).i);
     else
-    {
-      IR1.Func func = (IR1.Func)funcMap.get(n.name);
-      
-      for (int i = 0; i < func.params.length; i++)
-      {
-        String pname = func.params[i];
-        Val argval = execute(n.args[i]);
-        
-        varEnv.extendVar(pname, argval);
-      }
-      execute(func);
-      assign(n.rdst, retVal);
-    }
-    return CONTINUE;
+      out.printStr(val.toString());
   }
 
-  static int storageAllocation(int size)
+  int storageAllocation(int size) throws Exception
   {
-    int loc = heap.size();
-    for (int i = 0; i < size; i++) {
-      heap.add(new UndVal());
-    }
-    return loc;
+    return heap.alloc(size);
   }
   
   // Return ---  
   //  Src val;
   //
-  static int execute(IR1.Return n) throws Exception {
+  int execute(IR1.Return n) throws Exception {
 	if (n.val != null) {
       retVal = execute(n.val);
     }
-    varEnvStack.pop();
     return RETURN;
   }
 
@@ -518,13 +870,13 @@ public class IR1Interp1 {
   // Evaluatation routines for address
   //-----------------------------------------------------------------
   //
-  // - Returns an integer (representing index to the heap memory).
+  // - Returns an integer (representing a byte address in the heap).
   //
   // Address ---
   //  Src base;  
   //  int offset;
   //
-  static int execute(IR1.Addr n) throws Exception {
+  int execute(IR1.Addr n) throws Exception {
 	int loc = execute(n.base).asInt();
     return loc + n.offset;
   }
@@ -535,7 +887,7 @@ public class IR1Interp1 {
   //
   // - Each evaluate() routine returns a Val object.
   //
-  static Val execute(IR1.Src n) throws Exception {
+  Val execute(IR1.Src n) throws Exception {
 	Val val = null;
     if ((n instanceof IR1.Temp)) {
       val = execute((IR1.Temp)n);
@@ -558,34 +910,38 @@ public class IR1Interp1 {
     return val;
   }
 
-  static Val execute(IR1.Temp n) throws Exception
+  Val execute(IR1.Temp n) throws Exception
   {
-	return (Val)envStack.peek().lookupTemp(Integer.valueOf(n.num));
+	Val val = frame[n.slot];
+    if (val == null)
+      throw new IntException("Temp " + n + " not defined!");
+    return val;
   }
   
-  static Val execute(IR1.Id n) throws Exception
+  Val execute(IR1.Id n) throws Exception
   {
-	if (varEnvStack.empty())
-  	  varEnvStack.push(new VarEnv());
-    return (Val)varEnvStack.peek().lookupVar(n.name);
+	Val val = frame[n.slot];
+    if (val == null)
+      throw new IntException("Variable " + n + " not defined!");
+    return val;
   }
   
-  static IntVal execute(IR1.IntLit n) throws Exception
+  IntVal execute(IR1.IntLit n) throws Exception
   {
     return new IntVal(n.i);
   }
   
-  static BoolVal execute(IR1.BoolLit n) throws Exception
+  BoolVal execute(IR1.BoolLit n) throws Exception
   {
     return new BoolVal(n.b);
   }
   
-  static StrVal execute(IR1.StrLit n) throws Exception
+  StrVal execute(IR1.StrLit n) throws Exception
   {
     return new StrVal(n.s);
   }
   
-  static Val evaluate(IR1.Dest n) throws Exception {
+  Val evaluate(IR1.Dest n) throws Exception {
     Val val = null;
     if ((n instanceof IR1.Temp)) {
       val = execute((IR1.Temp)n);
@@ -0,0 +1,974 @@
+//
+// Bytecode VM backend for the IR1 interpreter.
+//
+// Each IR1.Func is lowered once into a compact int[] instruction
+// stream, which is then executed by a single int-switch loop. The
+// tree-walking interpreter in IR1Interp1 stays as the reference mode.
+//
+// Instruction format: an opcode followed by its operands, all ints.
+// Operands are frame slots; a function's constants live in the top
+// slots of its frame (copied in from the constant pool on each call),
+// so literal operands need no special casing at run time. Jump
+// targets are absolute indexes into the code array.
+//
+// Values are unboxed (see "Value representation" below), so the
+// execution loop allocates nothing for int and bool values.
+//
+// An IR1VM instance holds one program's run-time state (its code,
+// string table, heap and output); the closure engine shares it.
+//
+import java.util.*;
+import ir1.*;
+
+class IR1VM implements Memory.Roots {
+
+  //-----------------------------------------------------------------
+  // Value representation
+  //-----------------------------------------------------------------
+  //
+  // A value is a long with a type tag in the high word and the
+  // payload in the low word. A string's payload is its index in the
+  // program's string table. The all-zero long (tag UND) is the 
+  // undefined value, so fresh frames start undefined. The heap only
+  // holds untagged 4-byte ints (see Memory).
+  //
+  static final long UND = 0, INT = 1, BOOL = 2, STR = 3;
+
+  static long intVal(int i) { return (INT << 32) | (i & 0xffffffffL); }
+  static long boolVal(boolean b) { return (BOOL << 32) | (b ? 1 : 0); }
+  static long strVal(int idx) { return (STR << 32) | idx; }
+
+  static long tag(long v) { return v >>> 32; }
+
+  static int asInt(long v) throws IR1Interp1.IntException {
+    if ((v >>> 32) != INT)
+      throw new IR1Interp1.IntException("Integer value expected: " + describe(v));
+    return (int) v;
+  }
+
+  static boolean asBool(long v) throws IR1Interp1.IntException {
+    if ((v >>> 32) != BOOL)
+      throw new IR1Interp1.IntException("Boolean value expected: " + describe(v));
+    return (int) v != 0;
+  }
+
+  // The 4-byte memory representation of an int or bool
+  //
+  static int asWord(long v) throws IR1Interp1.IntException {
+    if ((v >>> 32) != INT && (v >>> 32) != BOOL)
+      throw new IR1Interp1.IntException("Can't store " + describe(v) + " in memory");
+    return (int) v;
+  }
+
+  // Print a value (printInt and printStr)
+  //
+  void print(long v) throws Exception {
+    switch ((int) (v >>> 32)) {
+    case (int) INT:  out.printInt((int) v); break;
+    case (int) BOOL: out.printBool((int) v != 0); break;
+    case (int) STR:  out.printStr(strings[(int) v]); break;
+    default: throw new IR1Interp1.IntException("Undefined value in print");
+    }
+  }
+
+  // A value for error messages (needs no string table)
+  //
+  static String describe(long v) {
+    switch ((int) (v >>> 32)) {
+    case (int) INT:  return "" + (int) v;
+    case (int) BOOL: return "" + ((int) v != 0);
+    case (int) STR:  return "string #" + (int) v;
+    default:	     return "UndVal";
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Opcodes
+  //-----------------------------------------------------------------
+  //
+  //   ADD..GE   d a b	    d = a op b
+  //   NEG, NOT  d a	    d = op a
+  //   MOV 	 d a	    d = a
+  //   LOAD 	 d a off    d = [a + off]
+  //   STORE 	 a off s    [a + off] = s
+  //   JMP 	 L	    goto L
+  //   IFEQ..IFGE a b L	    if a op b goto L
+  //   CALL 	 f d n args d = f(args)   (d < 0: no result)
+  //   RET 	 a	    return a	  (a < 0: no value)
+  //   PRINT 	 a	    print a
+  //   PRINTB 	 a	    print a as a bool (it may be a loaded int)
+  //   PRINTLN 		    print an empty line
+  //   MALLOC 	 d a	    d = malloc(a)
+  //   LOADX 	 d a i k off  d = [a + i*k + off]
+  //   STOREX 	 a i k off s  [a + i*k + off] = s
+  //
+  // k and off are immediates. LOADX and STOREX are superinstructions
+  // for array indexing (see Compiler.fuse()).
+  //
+  static final int
+    ADD = 0, SUB = 1, MUL = 2, DIV = 3, AND = 4, OR = 5,
+    EQ = 6, NE = 7, LT = 8, LE = 9, GT = 10, GE = 11,
+    NEG = 12, NOT = 13, MOV = 14, LOAD = 15, STORE = 16, JMP = 17,
+    IFEQ = 18, IFNE = 19, IFLT = 20, IFLE = 21, IFGT = 22, IFGE = 23,
+    CALL = 24, RET = 25, PRINT = 26, PRINTLN = 27, MALLOC = 28,
+    PRINTB = 29, LOADX = 30, STOREX = 31;
+
+  static final String[] opNames = {
+    "add", "sub", "mul", "div", "and", "or",
+    "eq", "ne", "lt", "le", "gt", "ge",
+    "neg", "not", "mov", "load", "store", "jmp",
+    "ifeq", "ifne", "iflt", "ifle", "ifgt", "ifge",
+    "call", "ret", "print", "println", "malloc", "printb",
+    "loadx", "storex"
+  };
+
+  // A compiled function
+  //
+  static class Code {
+    final String name;
+    int[] code;
+    int nparams;
+    int frameSize;		// vars + temps + constants
+    int constBase;		// first constant slot
+    long[] consts;		// constant pool
+    IR1Closure.Fn fn;		// closure tier
+    int invocations;		// tiered mode counters
+    int[] backEdges;		//  (indexed by loop header pc)
+    String[] source;		// pc -> IR1 source text (for profiles)
+    long[][] pool = new long[4][]; // frames free for reuse
+    int npool;
+
+    Code(String name) { 
+      this.name = name; 
+      this.fn = new IR1Closure.Fn(this);
+    }
+
+    public String toString() {
+      String str = "_" + name + " (frame " + frameSize + ", consts at "
+	+ constBase + ")\n";
+      for (int pc = 0; pc < code.length; pc += length(code, pc)) {
+	str += " " + pc + ":\t" + opNames[code[pc]];
+	for (int i = 1; i < length(code, pc); i++)
+	  str += " " + code[pc+i];
+	str += "\n";
+      }
+      return str;
+    }
+  }
+
+  // Length of the instruction at pc
+  //
+  static int length(int[] code, int pc) {
+    switch (code[pc]) {
+    case NEG: case NOT: case MOV: case MALLOC:
+      return 3;
+    case JMP: case RET: case PRINT: case PRINTB:
+      return 2;
+    case PRINTLN:
+      return 1;
+    case CALL:
+      return 4 + code[pc+3];
+    case LOADX: case STOREX:
+      return 6;
+    default:
+      return 4;
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Compiler
+  //-----------------------------------------------------------------
+  //
+
+  // Program ---
+  //  Func[] funcs;
+  //
+  // Compile all functions; calls are linked to their callee's Code,
+  // and string literals are collected in the string table.
+  //
+  Code[] compile(IR1.Program n) throws Exception {
+    HashMap<String,Integer> funcIdx = new HashMap<String,Integer>();
+    HashMap<String,Integer> strIdx = new HashMap<String,Integer>();
+    Code[] codes = new Code[n.funcs.length];
+    for (int i = 0; i < n.funcs.length; i++) {
+      funcIdx.put(n.funcs[i].name, i);
+      codes[i] = new Code(n.funcs[i].name);
+      codes[i].nparams = n.funcs[i].params.length;
+    }
+    for (int i = 0; i < n.funcs.length; i++)
+      new Compiler(n.funcs[i], funcIdx, strIdx, codes).compile(codes[i]);
+    strings = new String[strIdx.size()];
+    for (Map.Entry<String,Integer> me: strIdx.entrySet())
+      strings[me.getValue()] = me.getKey();
+    return codes;
+  }
+
+  static class Compiler {
+    final IR1.Func func;
+    final HashMap<String,Integer> funcIdx;
+    final HashMap<String,Integer> strIdx;
+    final Code[] codes;
+    int[] buf = new int[64];
+    int len = 0;
+    int[] instPc;			// IR1 inst index -> pc
+    ArrayList<Integer> fixups = new ArrayList<Integer>(); // pcs holding inst indexes
+    HashMap<Integer,String> source = new HashMap<Integer,String>();
+    int[] uses;				// slot -> number of uses as an operand
+    ArrayList<Long> consts = new ArrayList<Long>();
+    HashMap<Long,Integer> constIdx = new HashMap<Long,Integer>();
+    int constBase;
+
+    Compiler(IR1.Func func, HashMap<String,Integer> funcIdx,
+	     HashMap<String,Integer> strIdx, Code[] codes) {
+      this.func = func;
+      this.funcIdx = funcIdx;
+      this.strIdx = strIdx;
+      this.codes = codes;
+    }
+
+    void compile(Code c) throws Exception {
+      IR1Interp1.FuncInfo info = IR1Interp1.resolve(func);
+      constBase = info.frameSize;
+      countUses();
+      instPc = new int[func.code.length + 1];
+      for (int i = 0; i < func.code.length; ) {
+	int start = len;
+	int n = fuse(i);
+	if (n == 0) {
+	  gen(func.code[i]);
+	  n = 1;
+	}
+	String text = "";
+	for (int j = i; j < i + n; j++) {
+	  instPc[j] = start;	// fused insts are never jump targets
+	  text += (j > i ? ";" : "") + func.code[j].toString().replace("\n", "");
+	}
+	if (len > start)
+	  source.put(start, text + "\n");
+	i += n;
+      }
+      instPc[func.code.length] = len;
+      emit(RET, -1);	// falling off the end returns
+      for (int pc: fixups)
+	buf[pc] = instPc[buf[pc]];
+      c.code = Arrays.copyOf(buf, len);
+      c.backEdges = new int[len];
+      c.source = new String[len];
+      for (Map.Entry<Integer,String> me: source.entrySet())
+	c.source[me.getKey()] = me.getValue();
+      c.constBase = constBase;
+      c.consts = new long[consts.size()];
+      for (int i = 0; i < c.consts.length; i++)
+	c.consts[i] = consts.get(i);
+      c.frameSize = constBase + c.consts.length;
+    }
+
+    void emit(int... words) {
+      if (len + words.length > buf.length)
+	buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + words.length));
+      for (int w: words)
+	buf[len++] = w;
+    }
+
+    // Emit a branch; target is an IR1 inst index, patched to a pc
+    // once the whole function has been emitted
+    //
+    void emitBranch(int op, int a, int b, int target) {
+      if (op == JMP)
+	emit(JMP, target);
+      else
+	emit(op, a, b, target);
+      fixups.add(len - 1);
+    }
+
+    //---------------------------------------------------------------
+    // Superinstructions
+    //---------------------------------------------------------------
+    //
+    // Front ends emit a few short sequences that pass a value through
+    // a temp used nowhere else. Those are compiled to one instruction,
+    // and the temp is never written:
+    //
+    //   t = a rop b; if t == false goto L   =>  if a !rop b goto L
+    //   t = <def>; d = t                    =>  d = <def>
+    //   t1 = i * k; t2 = a + t1; t3 = [t2]  =>  t3 = [a + i*k]
+    //   t1 = i * k; t2 = a + t1; [t2] = s   =>  [a + i*k] = s
+    //
+    // Returns the number of IR1 insts compiled at i (0 if no pattern
+    // applies). Only adjacent insts are fused, so no label can come
+    // between them.
+    //
+    int fuse(int i) throws Exception {
+      IR1.Inst[] code = func.code;
+      if (i + 2 < code.length) {
+	int n = fuseIndexed(i);
+	if (n > 0)
+	  return n;
+      }
+      if (i + 1 >= code.length)
+	return 0;
+      IR1.Inst a = code[i], b = code[i+1];
+      if (a instanceof IR1.Binop && ((IR1.Binop) a).op instanceof IR1.ROP
+	  && b instanceof IR1.CJump) {
+	IR1.Binop r = (IR1.Binop) a;
+	IR1.CJump j = (IR1.CJump) b;
+	if (dead(r.dst, j.src1) && j.src2 instanceof IR1.BoolLit
+	    && (j.op == IR1.ROP.EQ || j.op == IR1.ROP.NE)) {
+	  boolean onTrue = ((IR1.BoolLit) j.src2).b == (j.op == IR1.ROP.EQ);
+	  int rop = ((IR1.ROP) r.op).ordinal();
+	  emitBranch(IFEQ + (onTrue ? rop : negate(rop)), slot(r.src1), 
+		     slot(r.src2), j.lab.target);
+	  return 2;
+	}
+      }
+      if (b instanceof IR1.Move && dead(dest(a), ((IR1.Move) b).src)) {
+	int start = len;
+	gen(a);
+	if (hasDest(buf[start])) {
+	  buf[start + (buf[start] == CALL ? 2 : 1)] = slot(((IR1.Move) b).dst);
+	  return 2;
+	}
+	len = start;		// no dest to retarget; undo
+      }
+      return 0;
+    }
+
+    int fuseIndexed(int i) throws Exception {
+      IR1.Inst[] code = func.code;
+      if (!(code[i] instanceof IR1.Binop && code[i+1] instanceof IR1.Binop))
+	return 0;
+      IR1.Binop mul = (IR1.Binop) code[i], add = (IR1.Binop) code[i+1];
+      if (mul.op != IR1.AOP.MUL || add.op != IR1.AOP.ADD)
+	return 0;
+      IR1.Src idx;
+      int k;
+      if (mul.src2 instanceof IR1.IntLit) {
+	idx = mul.src1;
+	k = ((IR1.IntLit) mul.src2).i;
+      } else if (mul.src1 instanceof IR1.IntLit) {
+	idx = mul.src2;
+	k = ((IR1.IntLit) mul.src1).i;
+      } else {
+	return 0;
+      }
+      IR1.Src base;
+      if (dead(mul.dst, add.src2))
+	base = add.src1;
+      else if (dead(mul.dst, add.src1))
+	base = add.src2;
+      else
+	return 0;
+      if (code[i+2] instanceof IR1.Load) {
+	IR1.Load l = (IR1.Load) code[i+2];
+	if (!dead(add.dst, l.addr.base))
+	  return 0;
+	if (i + 3 < code.length && code[i+3] instanceof IR1.Move
+	    && dead(l.dst, ((IR1.Move) code[i+3]).src)) {
+	  emit(LOADX, slot(((IR1.Move) code[i+3]).dst), slot(base), slot(idx), 
+	       k, l.addr.offset);
+	  return 4;
+	}
+	emit(LOADX, slot(l.dst), slot(base), slot(idx), k, l.addr.offset);
+	return 3;
+      }
+      if (code[i+2] instanceof IR1.Store) {
+	IR1.Store s = (IR1.Store) code[i+2];
+	if (!dead(add.dst, s.addr.base))
+	  return 0;
+	emit(STOREX, slot(base), slot(idx), k, s.addr.offset, slot(s.src));
+	return 3;
+      }
+      return 0;
+    }
+
+    // Is use the only use of temp t?
+    //
+    boolean dead(IR1.Dest t, IR1.Src use) {
+      return t instanceof IR1.Temp && use instanceof IR1.Temp
+	&& ((IR1.Temp) t).slot == ((IR1.Temp) use).slot
+	&& uses[((IR1.Temp) t).slot] == 1;
+    }
+
+    static IR1.Dest dest(IR1.Inst n) {
+      if (n instanceof IR1.Binop) return ((IR1.Binop) n).dst;
+      if (n instanceof IR1.Unop)  return ((IR1.Unop) n).dst;
+      if (n instanceof IR1.Move)  return ((IR1.Move) n).dst;
+      if (n instanceof IR1.Load)  return ((IR1.Load) n).dst;
+      if (n instanceof IR1.Call)  return ((IR1.Call) n).rdst;
+      return null;
+    }
+
+    static boolean hasDest(int op) {
+      return op <= MOV || op == LOAD || op == MALLOC || op == CALL;
+    }
+
+    // Rop for the negated condition (EQ-NE, LT-GE, LE-GT)
+    //
+    static int negate(int rop) {
+      return rop < 2 ? 1 - rop : 7 - rop;
+    }
+
+    void countUses() {
+      uses = new int[constBase];
+      for (IR1.Inst n: func.code) {
+	if (n instanceof IR1.Binop) {
+	  use(((IR1.Binop) n).src1);
+	  use(((IR1.Binop) n).src2);
+	} else if (n instanceof IR1.Unop) {
+	  use(((IR1.Unop) n).src);
+	} else if (n instanceof IR1.Move) {
+	  use(((IR1.Move) n).src);
+	} else if (n instanceof IR1.Load) {
+	  use(((IR1.Load) n).addr.base);
+	} else if (n instanceof IR1.Store) {
+	  use(((IR1.Store) n).addr.base);
+	  use(((IR1.Store) n).src);
+	} else if (n instanceof IR1.CJump) {
+	  use(((IR1.CJump) n).src1);
+	  use(((IR1.CJump) n).src2);
+	} else if (n instanceof IR1.Call) {
+	  for (IR1.Src a: ((IR1.Call) n).args)
+	    use(a);
+	} else if (n instanceof IR1.Return) {
+	  use(((IR1.Return) n).val);
+	}
+      }
+    }
+
+    void use(IR1.Src n) {
+      if (n instanceof IR1.Temp)
+	uses[((IR1.Temp) n).slot]++;
+      else if (n instanceof IR1.Id)
+	uses[((IR1.Id) n).slot]++;
+    }
+
+    void gen(IR1.Inst n) throws Exception {
+      if (n instanceof IR1.Binop) {
+	IR1.Binop b = (IR1.Binop) n;
+	emit(opcode(b.op), slot(b.dst), slot(b.src1), slot(b.src2));
+      } else if (n instanceof IR1.Unop) {
+	IR1.Unop u = (IR1.Unop) n;
+	emit(u.op == IR1.UOP.NEG ? NEG : NOT, slot(u.dst), slot(u.src));
+      } else if (n instanceof IR1.Move) {
+	IR1.Move m = (IR1.Move) n;
+	emit(MOV, slot(m.dst), slot(m.src));
+      } else if (n instanceof IR1.Load) {
+	IR1.Load l = (IR1.Load) n;
+	emit(LOAD, slot(l.dst), slot(l.addr.base), l.addr.offset);
+      } else if (n instanceof IR1.Store) {
+	IR1.Store s = (IR1.Store) n;
+	emit(STORE, slot(s.addr.base), s.addr.offset, slot(s.src));
+      } else if (n instanceof IR1.CJump) {
+	IR1.CJump j = (IR1.CJump) n;
+	emitBranch(IFEQ + j.op.ordinal(), slot(j.src1), slot(j.src2), j.lab.target);
+      } else if (n instanceof IR1.Jump) {
+	emitBranch(JMP, 0, 0, ((IR1.Jump) n).lab.target);
+      } else if (n instanceof IR1.Call) {
+	gen((IR1.Call) n);
+      } else if (n instanceof IR1.Return) {
+	IR1.Return r = (IR1.Return) n;
+	emit(RET, r.val == null ? -1 : slot(r.val));
+      } else if (!(n instanceof IR1.LabelDec)) {
+	throw new IR1Interp1.IntException("Unknown Inst: " + n);
+      }
+    }
+
+    void gen(IR1.Call n) throws Exception {
+      if (n.name.equals("printInt") || n.name.equals("printStr")) {
+	if (n.args.length == 0)
+	  emit(PRINTLN);
+	else
+	  emit(PRINT, slot(n.args[0]));
+      } else if (n.name.equals("printBool")) {
+	emit(PRINTB, slot(n.args[0]));
+      } else if (n.name.equals("malloc")) {
+	emit(MALLOC, dslot(n.rdst), slot(n.args[0]));
+      } else {
+	Integer f = funcIdx.get(n.name);
+	if (f == null)
+	  throw new IR1Interp1.IntException("Function " + n.name + " not defined!");
+	int nparams = codes[f].nparams;
+	if (n.args.length < nparams)
+	  throw new IR1Interp1.IntException("Too few args in call: " + n);
+	emit(CALL, f, dslot(n.rdst), nparams);
+	for (int i = 0; i < nparams; i++)
+	  emit(slot(n.args[i]));
+      }
+    }
+
+    int slot(IR1.Dest n) {
+      return slot((IR1.Src) n);
+    }
+
+    int dslot(IR1.Dest n) {
+      return n == null ? -1 : slot(n);
+    }
+
+    // Id and Temp operands use their resolved slots; literals are
+    // given a constant slot (shared by equal literals)
+    //
+    int slot(IR1.Src n) {
+      if (n instanceof IR1.Temp) return ((IR1.Temp) n).slot;
+      if (n instanceof IR1.Id)   return ((IR1.Id) n).slot;
+      long val;
+      if (n instanceof IR1.IntLit) {
+	val = intVal(((IR1.IntLit) n).i);
+      } else if (n instanceof IR1.BoolLit) {
+	val = boolVal(((IR1.BoolLit) n).b);
+      } else {
+	String str = ((IR1.StrLit) n).s;
+	Integer sidx = strIdx.get(str);
+	if (sidx == null) {
+	  sidx = strIdx.size();
+	  strIdx.put(str, sidx);
+	}
+	val = strVal(sidx);
+      }
+      Integer idx = constIdx.get(val);
+      if (idx == null) {
+	idx = consts.size();
+	consts.add(val);
+	constIdx.put(val, idx);
+      }
+      return constBase + idx;
+    }
+  }
+
+  static int opcode(IR1.BOP op) {
+    if (op instanceof IR1.ROP)
+      return EQ + ((IR1.ROP) op).ordinal();
+    return ADD + ((IR1.AOP) op).ordinal();
+  }
+
+  //-----------------------------------------------------------------
+  // Execution
+  //-----------------------------------------------------------------
+  //
+  Code[] codes;
+  String[] strings;			// string table
+  final Memory heap;
+  final Output out;
+
+  // Closure tier state
+  // - retVal passes a closure function's return value out of its
+  //   node loop; profiler, when set, instruments compiled closures
+  //
+  long retVal;
+  Profiler profiler;
+
+  // Activation stack
+  // - the code, frame and current pc of every active call; run()
+  //   executes calls between interpreted functions by pushing and
+  //   popping entries here, not by Java recursion (pcs[i] is only 
+  //   up to date for activations below the top)
+  // - the frames are also the GC's roots
+  // - the stack may have a quota (stackLimit) on the memory its
+  //   activations take: STACK_ENTRY bytes each, plus their frames
+  //
+  static final int STACK_ENTRY = 32;
+  Code[] stack = new Code[64];
+  long[][] frames = new long[64][];
+  int[] pcs = new int[64];
+  int depth = 0;
+  long stackBytes = 0;
+  long stackLimit = Long.MAX_VALUE;
+
+  // Tiered mode
+  // - functions start out interpreted; a function called more than
+  //   callThreshold times is compiled to closures for its following
+  //   calls, and a loop whose back edge is taken more than
+  //   loopThreshold times is compiled and entered mid-execution
+  //   (on-stack replacement), which is trivial since both tiers share
+  //   the same frame layout
+  //
+  boolean tiered = false;
+  int callThreshold = 1000;
+  int loopThreshold = 10000;
+
+  // Fuel metering
+  // - run() burns one unit of fuel per call and per taken back edge
+  //   (only these can keep a program running indefinitely); when the
+  //   fuel runs out, outOfFuel() charges the slice to the quota, and
+  //   then either refills the fuel or, in a preemptible run, 
+  //   suspends the program (see start() and resume())
+  // - closure code burns no fuel, so preemptible runs are 
+  //   interpreted only
+  //
+  long fuel = Long.MAX_VALUE;
+  long slice = Long.MAX_VALUE;		// fuel per time slice
+  long quota = Long.MAX_VALUE;		// fuel for the whole run
+  long allotted = Long.MAX_VALUE;	// fuel at the start of the slice
+  long burnt = 0;			// fuel of finished slices
+  boolean preemptible = false;
+  boolean suspended = false;
+
+  IR1VM(Memory heap, Output out) {
+    this.heap = heap;
+    this.out = out;
+    heap.roots = this;
+  }
+
+  // Call a function in its best available tier
+  //
+  long invoke(Code callee, long[] frame) throws Exception {
+    boolean compiled = compiled(callee);
+    push(callee, frame);
+    long val = compiled
+      ? IR1Closure.run(this, callee.fn, frame, 0) : run(depth, 0);
+    pop();
+    return val;
+  }
+
+  // Does callee run in the closure tier? (A call may move it there.)
+  //
+  boolean compiled(Code callee) throws Exception {
+    if (tiered && callee.fn.nodes == null 
+	&& ++callee.invocations > callThreshold)
+      IR1Closure.compile(this, callee.fn);
+    return callee.fn.nodes != null;
+  }
+
+  void push(Code c, long[] frame) throws IR1Interp1.IntException {
+    long bytes = STACK_ENTRY + 8L * frame.length;
+    if (stackBytes + bytes > stackLimit)
+      throw new IR1Interp1.IntException("Stack quota exceeded: " + stackLimit + " bytes");
+    stackBytes += bytes;
+    if (depth == frames.length) {
+      stack = Arrays.copyOf(stack, 2 * depth);
+      frames = Arrays.copyOf(frames, 2 * depth);
+      pcs = Arrays.copyOf(pcs, 2 * depth);
+    }
+    stack[depth] = c;
+    frames[depth++] = frame;
+  }
+
+  void pop() {
+    stackBytes -= STACK_ENTRY + 8L * frames[depth-1].length;
+    stack[--depth] = null;
+    frames[depth] = null;
+  }
+
+  // Return val from the top activation (which run() entered with a
+  // CALL) to its caller; returns the caller's next pc
+  //
+  int returnTo(long val) {
+    Code c = stack[depth-1];
+    release(c, frames[depth-1]);
+    pop();
+    int[] code = stack[depth-1].code;
+    int pc = pcs[depth-1];
+    if (code[pc+2] >= 0)
+      frames[depth-1][code[pc+2]] = val;
+    return pc + 4 + code[pc+3];
+  }
+
+  public void markRoots(Memory heap) {
+    for (int i = 0; i < depth; i++)
+      for (long v: frames[i])
+	if (tag(v) == INT)
+	  heap.mark((int) v);
+  }
+
+  // Count a taken back edge to target; returns true when the loop
+  // has become hot
+  //
+  boolean hotLoop(Code c, int target) {
+    return tiered && ++c.backEdges[target] > loopThreshold;
+  }
+
+  // On-stack replacement: continue the current activation of c in
+  // the closure tier, at the loop header target
+  //
+  long osr(Code c, long[] frame, int target) throws Exception {
+    if (c.fn.nodes == null)
+      IR1Closure.compile(this, c.fn);
+    return IR1Closure.run(this, c.fn, frame, c.fn.index[target]);
+  }
+
+  // Compile the program and run its main function
+  //
+  void execute(IR1.Program n) throws Exception {
+    load(n);
+    run();
+  }
+
+  // Compile the program (if it isn't yet) and find its main; run()
+  // may then run main any number of times. Tiered mode's counters
+  // carry over from one run to the next.
+  //
+  Code mainCode;
+
+  void load(IR1.Program n) throws Exception {
+    mainCode = main(n);
+  }
+
+  void run() throws Exception {
+    depth = 0;
+    stackBytes = 0;
+    burnt = 0;
+    refuel();
+    if (profiler != null)
+      profiler.enter(mainCode);
+    try {
+      invoke(mainCode, newFrame(mainCode));
+    } finally {
+      if (profiler != null)
+	profiler.exit();
+    }
+  }
+
+  Code main(IR1.Program n) throws Exception {
+    if (codes == null)
+      codes = compile(n);
+    for (Code c: codes)
+      if (c.name.equals("main"))
+	return c;
+    throw new IR1Interp1.IntException("Function main not defined!");
+  }
+
+  //-----------------------------------------------------------------
+  // Preemptible execution
+  //-----------------------------------------------------------------
+  //
+  // start() sets up main's activation; each resume() then runs the
+  // program for one slice of fuel, and returns true once main has
+  // returned. Between slices, the whole execution state is on the
+  // activation stack, so any thread may resume it.
+  //
+  void start(IR1.Program n) throws Exception {
+    Code main = main(n);
+    preemptible = true;
+    push(main, newFrame(main));
+    pcs[0] = 0;
+  }
+
+  boolean resume() throws Exception {
+    refuel();
+    suspended = false;
+    run(1, pcs[depth-1]);
+    if (suspended)
+      return false;
+    pop();
+    return true;
+  }
+
+  void refuel() {
+    allotted = fuel = Math.min(slice, quota - burnt);
+  }
+
+  // Fuel used so far
+  //
+  long fuelUsed() {
+    return burnt + allotted - Math.max(fuel, 0);
+  }
+
+  // The instruction at pc needs fuel, and there's none left; returns
+  // true if the program is suspended (at pc, which runs again on
+  // resume). Only the outermost run() can suspend: an inner one 
+  // has a Java caller.
+  //
+  boolean outOfFuel(int base, int pc) throws IR1Interp1.IntException {
+    burnt += allotted;
+    fuel = 0;
+    if (burnt >= quota)
+      throw new IR1Interp1.IntException("Instruction quota exceeded: " + quota);
+    if (preemptible && base == 1) {
+      pcs[depth-1] = pc;
+      suspended = true;
+      return true;
+    }
+    refuel();
+    fuel--;
+    return false;
+  }
+
+  static long[] newFrame(Code c) {
+    long[] frame = new long[c.frameSize];
+    System.arraycopy(c.consts, 0, frame, c.constBase, c.consts.length);
+    return frame;
+  }
+
+  // A frame from c's pool; the constants are still in place, and
+  // release() has cleared the rest
+  //
+  static long[] frame(Code c) {
+    return c.npool > 0 ? c.pool[--c.npool] : newFrame(c);
+  }
+
+  static void release(Code c, long[] frame) {
+    Arrays.fill(frame, 0, c.constBase, UND);
+    if (c.npool == c.pool.length)
+      c.pool = Arrays.copyOf(c.pool, 2 * c.npool);
+    c.pool[c.npool++] = frame;
+  }
+
+  // The fetch-and-execute loop
+  // - runs the activation on top of the stack, from pc, until the
+  //   activation at base-1 returns; calls to other interpreted 
+  //   functions continue in this loop, on a new activation (c, code
+  //   and frame always belong to the top one)
+  // - returns the function's return value (UND if none, or if the
+  //   program was suspended)
+  //
+  long run(final int base, int pc) throws Exception {
+    final Memory heap = this.heap;
+    Code c = stack[depth-1];
+    long[] frame = frames[depth-1];
+    int[] code = c.code;
+    while (true) {
+      switch (code[pc]) {
+      case ADD:
+	frame[code[pc+1]] = intVal(asInt(frame[code[pc+2]]) + asInt(frame[code[pc+3]]));
+	pc += 4; break;
+      case SUB:
+	frame[code[pc+1]] = intVal(asInt(frame[code[pc+2]]) - asInt(frame[code[pc+3]]));
+	pc += 4; break;
+      case MUL:
+	frame[code[pc+1]] = intVal(asInt(frame[code[pc+2]]) * asInt(frame[code[pc+3]]));
+	pc += 4; break;
+      case DIV:
+	frame[code[pc+1]] = intVal(asInt(frame[code[pc+2]]) / asInt(frame[code[pc+3]]));
+	pc += 4; break;
+      case AND:
+	frame[code[pc+1]] = boolVal(asBool(frame[code[pc+2]]) & asBool(frame[code[pc+3]]));
+	pc += 4; break;
+      case OR:
+	frame[code[pc+1]] = boolVal(asBool(frame[code[pc+2]]) | asBool(frame[code[pc+3]]));
+	pc += 4; break;
+      case EQ: case NE: case LT: case LE: case GT: case GE:
+	frame[code[pc+1]] = boolVal(compare(code[pc] - EQ, frame[code[pc+2]], frame[code[pc+3]]));
+	pc += 4; break;
+      case NEG:
+	frame[code[pc+1]] = intVal(-asInt(frame[code[pc+2]]));
+	pc += 3; break;
+      case NOT:
+	frame[code[pc+1]] = boolVal(!asBool(frame[code[pc+2]]));
+	pc += 3; break;
+      case MOV:
+	frame[code[pc+1]] = frame[code[pc+2]];
+	pc += 3; break;
+      case LOAD:
+	frame[code[pc+1]] = intVal(heap.load(asInt(frame[code[pc+2]]) + code[pc+3]));
+	pc += 4; break;
+      case STORE:
+	heap.store(asInt(frame[code[pc+1]]) + code[pc+2], asWord(frame[code[pc+3]]));
+	pc += 4; break;
+      case JMP: {
+	int target = code[pc+1];
+	if (target <= pc && --fuel < 0 && outOfFuel(base, pc))
+	  return UND;
+	if (target <= pc && hotLoop(c, target)) {
+	  long val = osr(c, frame, target);
+	  if (depth == base)
+	    return val;
+	  pc = returnTo(val);
+	  c = stack[depth-1]; code = c.code; frame = frames[depth-1];
+	} else
+	  pc = target;
+	break;
+      }
+      case IFEQ: case IFNE: case IFLT: case IFLE: case IFGT: case IFGE:
+	if (compare(code[pc] - IFEQ, frame[code[pc+1]], frame[code[pc+2]])) {
+	  int target = code[pc+3];
+	  if (target <= pc && --fuel < 0 && outOfFuel(base, pc))
+	    return UND;
+	  if (target <= pc && hotLoop(c, target)) {
+	    long val = osr(c, frame, target);
+	    if (depth == base)
+	      return val;
+	    pc = returnTo(val);
+	    c = stack[depth-1]; code = c.code; frame = frames[depth-1];
+	  } else
+	    pc = target;
+	} else
+	  pc += 4;
+	break;
+      case CALL: {
+	if (--fuel < 0 && outOfFuel(base, pc))
+	  return UND;
+	Code callee = codes[code[pc+1]];
+	long[] newFrame = frame(callee);
+	int nargs = code[pc+3];
+	for (int i = 0; i < nargs; i++)
+	  newFrame[i] = frame[code[pc+4+i]];
+	if (compiled(callee)) {
+	  push(callee, newFrame);
+	  long val = IR1Closure.run(this, callee.fn, newFrame, 0);
+	  pop();
+	  release(callee, newFrame);
+	  if (code[pc+2] >= 0)
+	    frame[code[pc+2]] = val;
+	  pc += 4 + nargs; break;
+	}
+	pcs[depth-1] = pc;
+	push(callee, newFrame);
+	c = callee; code = c.code; frame = newFrame;
+	pc = 0; break;
+      }
+      case RET: {
+	long val = code[pc+1] < 0 ? UND : frame[code[pc+1]];
+	if (depth == base)
+	  return val;
+	pc = returnTo(val);
+	c = stack[depth-1]; code = c.code; frame = frames[depth-1];
+	break;
+      }
+      case PRINT: {
+	print(frame[code[pc+1]]);
+	pc += 2; break;
+      }
+      case PRINTB: {
+	long val = frame[code[pc+1]];
+	if (tag(val) != INT && tag(val) != BOOL)
+	  throw new IR1Interp1.IntException("Boolean value expected: " + describe(val));
+	out.printBool((int) val != 0);
+	pc += 2; break;
+      }
+      case PRINTLN:
+	out.println();
+	pc += 1; break;
+      case MALLOC: {
+	int loc = heap.alloc(asInt(frame[code[pc+2]]));
+	if (code[pc+1] >= 0)
+	  frame[code[pc+1]] = intVal(loc);
+	pc += 3; break;
+      }
+      case LOADX:
+	frame[code[pc+1]] = intVal(heap.load(asInt(frame[code[pc+2]]) 
+	  + asInt(frame[code[pc+3]]) * code[pc+4] + code[pc+5]));
+	pc += 6; break;
+      case STOREX:
+	heap.store(asInt(frame[code[pc+1]]) + asInt(frame[code[pc+2]]) * code[pc+3] 
+		   + code[pc+4], asWord(frame[code[pc+5]]));
+	pc += 6; break;
+      default:
+	throw new IR1Interp1.IntException("Bad opcode " + code[pc] + " at " + pc);
+      }
+    }
+  }
+
+  // Relational ops, indexed as in IR1.ROP. Ints compare with all
+  // six ops, bools with EQ and NE only.
+  //
+  static boolean compare(int rop, long lval, long rval)
+    throws IR1Interp1.IntException {
+    if (tag(lval) == INT && tag(rval) == INT) {
+      int l = (int) lval, r = (int) rval;
+      switch (rop) {
+      case 0: return l == r;
+      case 1: return l != r;
+      case 2: return l < r;
+      case 3: return l <= r;
+      case 4: return l > r;
+      default: return l >= r;
+      }
+    }
+    // bools, or a bool and a loaded int (memory only holds ints)
+    if ((tag(lval) == BOOL || tag(lval) == INT) 
+	&& (tag(rval) == BOOL || tag(rval) == INT) && rop <= 1)
+      return (((int) lval != 0) == ((int) rval != 0)) == (rop == 0);
+    throw new IR1Interp1.IntException("Bad operands for " + IR1.ROP.values()[rop]
+				      + ": " + describe(lval) + ", " + describe(rval));
+  }
+
+}
@@ -0,0 +1,180 @@
+//
+// An IR1 interpreter instance.
+//
+// An Interpreter runs one program with its own heap, frames, code
+// and output sink; no engine keeps run-time state in static
+// fields, so any number of programs can run concurrently in one JVM.
+// runAll() is the batch API: it runs a list of programs on a thread
+// pool and collects each program's output.
+//
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import ir1.*;
+
+class Interpreter {
+
+  // Execution engines (see IR1Interp1.main)
+  //
+  enum Engine { REF, VM, CLOSURE, TIERED }
+
+  final Engine engine;
+  final Memory heap;
+  final Output out;
+
+  // Tiered mode thresholds (see IR1VM)
+  //
+  int callThreshold = 1000;
+  int loopThreshold = 10000;
+
+  // Profiler (closure engine only)
+  //
+  Profiler profiler;
+
+  Interpreter(Engine engine, Output out) {
+    this(engine, new Memory(), out);
+  }
+
+  Interpreter(Engine engine, Memory heap, Output out) {
+    this.engine = engine;
+    this.heap = heap;
+    this.out = out;
+  }
+
+  // The engine, once a program is loaded
+  //
+  IR1Interp1 ref;
+  IR1VM vm;
+
+  // Run program p; its output is flushed when it exits or fails
+  //
+  void execute(IR1.Program p) throws Exception {
+    try {
+      load(p);
+    } finally {
+      out.flush();
+    }
+    run();
+  }
+
+  // Load (resolve, link, compile) program p into a new engine
+  //
+  void load(IR1.Program p) throws Exception {
+    if (engine == Engine.REF) {
+      ref = new IR1Interp1(heap, out);
+      ref.load(p);
+      return;
+    }
+    vm = new IR1VM(heap, out);
+    vm.tiered = engine == Engine.TIERED;
+    vm.callThreshold = callThreshold;
+    vm.loopThreshold = loopThreshold;
+    vm.profiler = profiler;
+    if (engine == Engine.CLOSURE)
+      IR1Closure.load(vm, p);
+    else
+      vm.load(p);
+  }
+
+  // Run the loaded program (again) from main, on the heap as it is
+  //
+  void run() throws Exception {
+    try {
+      if (ref != null)
+	ref.run();
+      else
+	vm.run();
+    } finally {
+      out.flush();
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Parsing
+  //-----------------------------------------------------------------
+  //
+  // Parse a text IR1 file, or load a binary one (see IR1Binary).
+  // Parsers are per input (see ir1.Parser), so programs can be
+  // parsed concurrently.
+  //
+  static IR1.Program parse(String file) throws IOException, ParseException {
+    if (IR1Binary.isBinary(file))
+      return IR1Binary.Reader.map(file).program();
+    return Parser.parse(file);
+  }
+
+  //-----------------------------------------------------------------
+  // Batch execution
+  //-----------------------------------------------------------------
+  //
+  static class Result {
+    final String file;
+    String output;		// everything the program printed (unless
+				//  it went to a file)
+    Throwable error;		// null if the program ran to completion
+    long nanos;			// parse + run time
+
+    Result(String file) { this.file = file; }
+  }
+
+  // Parse and run one program; its output goes to outFile, or is
+  // captured in the result if outFile is null
+  //
+  static Result run(String file, Engine engine, String outFile) {
+    Result r = new Result(file);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    long start = System.nanoTime();
+    Output out = null;
+    try {
+      out = outFile == null ? new Output(buf) : Output.file(outFile);
+      new Interpreter(engine, out).execute(parse(file));
+    } catch (Throwable e) {
+      r.error = e;
+    } finally {
+      if (out != null) {
+	try {
+	  out.channel.close();
+	} catch (IOException e) {
+	  if (r.error == null)
+	    r.error = e;
+	}
+      }
+    }
+    r.nanos = System.nanoTime() - start;
+    if (outFile == null)
+      r.output = buf.toString();
+    return r;
+  }
+
+  // Run each file on its own Interpreter, nthreads programs at a
+  // time; with toFiles, each program's output goes to <file>.out.
+  // Results come back in the order of files.
+  //
+  static List<Result> runAll(List<String> files, final Engine engine,
+			     int nthreads, final boolean toFiles)
+    throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+    try {
+      List<Future<Result>> futures = new ArrayList<Future<Result>>();
+      for (final String file: files)
+	futures.add(pool.submit(new Callable<Result>() {
+	  public Result call() {
+	    return run(file, engine, 
+		       toFiles ? IR1Interp1.baseName(file) + ".out" : null);
+	  }
+	}));
+      List<Result> results = new ArrayList<Result>();
+      for (Future<Result> f: futures) {
+	try {
+	  results.add(f.get());
+	} catch (ExecutionException e) {	// run() catches everything
+	  throw new RuntimeException(e.getCause());
+	}
+      }
+      return results;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+}
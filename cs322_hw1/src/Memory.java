@@ -0,0 +1,346 @@
+//
+// Byte-addressed heap memory for the IR1 interpreters.
+//
+// IR1 code addresses memory in bytes and stores 4-byte ints (see
+// the movl/movslq code CodeGen emits), so the heap is a little-endian
+// direct ByteBuffer. Each malloc'ed block is preceded by an 8-byte
+// header (payload size, flags); new blocks come from size-class free
+// lists, or else from the top of the heap.
+//
+// Garbage collection is mark-sweep, and conservative: the heap and
+// frames hold untyped ints, so any int in a root or in a reachable
+// block that points into a block keeps that block alive. Blocks never
+// move. When the top of the heap runs out of room, the heap is
+// collected first (once it has reached MIN_GC_HEAP), and only grown
+// (by doubling) if that didn't free enough. Roots come from the
+// running engine (see Roots).
+//
+// A heap may have a quota (limit): the heap is collected before the
+// top would pass it, and allocation fails if it still would.
+//
+// Loads and stores may only touch the payload of a live block: a
+// bitmap (one bit per ALIGN bytes) records which payload words are
+// live, so programs can't reach headers or free-list links.
+//
+import java.nio.*;
+import java.util.*;
+
+class Memory {
+  static final int WORD = 4;		// size of a stored value
+  static final int ALIGN = 8;		// alignment of malloc'ed blocks
+  static final int HEADER = ALIGN;	// block size, flags
+  static final int RESERVED = ALIGN;	// keeps address 0 unallocated
+  static final int MARK = 1, FREE = 2;	// header flags
+  static final int CLASSES = 32;	// exact-fit lists for 8..256 bytes
+  static final int MIN_GC_HEAP = 1 << 22; // smaller heaps just grow
+
+  // A source of GC roots: calls mark() for every value it holds
+  //
+  interface Roots {
+    void markRoots(Memory heap);
+  }
+
+  ByteBuffer buf;
+  int top;				// next free byte
+  int dirty;				// bytes above this (and top) are
+					//  still zero
+  Roots roots;				// null: no collection
+  long limit = Integer.MAX_VALUE;	// quota on top
+  final int[] free = new int[CLASSES + 1];	// list heads (block
+					//  addresses, 0 = empty); the
+					//  last list holds larger blocks
+  long freeBytes;			// in free lists, headers included
+  long[] live;				// live payload, one bit per ALIGN bytes
+
+  // Statistics
+  long allocated;			// bytes requested, in total
+  int collections;
+  long gcNanos, maxPause;		// total and longest GC time
+  long reclaimed;			// bytes freed by GC
+
+  Memory(int capacity) {
+    buf = ByteBuffer.allocateDirect(Math.max(capacity, 2 * RESERVED))
+      .order(ByteOrder.LITTLE_ENDIAN);
+    top = dirty = RESERVED;
+    live = new long[(buf.capacity() / ALIGN + 63) / 64];
+  }
+
+  Memory() { this(1 << 16); }
+
+  // Allocate size bytes; returns the block's address
+  //
+  int alloc(int size) throws IR1Interp1.IntException {
+    if (size < 0)
+      throw new IR1Interp1.IntException("Negative malloc size: " + size);
+    int n = Math.max(ALIGN, (int) (((long) size + ALIGN - 1) & -ALIGN));
+    int h = takeFree(n);
+    if (h == 0) {
+      long end = (long) top + HEADER + n;
+      if (roots != null && (end > limit
+	  || end > buf.capacity() && buf.capacity() >= MIN_GC_HEAP)) {
+	collect();
+	h = takeFree(n);
+      }
+    }
+    int used = Math.max(dirty, top);
+    if (h == 0)
+      h = bump(n);
+    // reused memory is cleared, as fresh memory is (all of the block:
+    // takeFree may have returned one larger than n)
+    setLive(h + HEADER, blockSize(h), true);
+    for (int p = h + HEADER; p < Math.min(h + HEADER + blockSize(h), used); p += ALIGN)
+      buf.putLong(p, 0);
+    allocated += size;
+    return h + HEADER;
+  }
+
+  // A new block of payload n at the top
+  //
+  int bump(int n) throws IR1Interp1.IntException {
+    long end = (long) top + HEADER + n;
+    if (end > Integer.MAX_VALUE - ALIGN)
+      throw new IR1Interp1.IntException("Out of heap memory");
+    if (end > limit)
+      throw new IR1Interp1.IntException("Heap quota exceeded: " + limit + " bytes");
+    if (end > buf.capacity())
+      grow((int) end);
+    int h = top;
+    setHeader(h, n, 0);
+    top = (int) end;
+    return h;
+  }
+
+  void grow(int needed) {
+    long cap = buf.capacity();
+    while (cap < needed)
+      cap *= 2;
+    cap = Math.min(cap, Math.max(needed, limit));
+    ByteBuffer nbuf = ByteBuffer.allocateDirect((int) Math.min(cap, Integer.MAX_VALUE))
+      .order(ByteOrder.LITTLE_ENDIAN);
+    buf.clear();
+    nbuf.put(buf);
+    nbuf.clear();
+    buf = nbuf;
+    live = Arrays.copyOf(live, (buf.capacity() / ALIGN + 63) / 64);
+  }
+
+  // Empty the heap for another run, keeping its buffer (as grown)
+  // and quota
+  //
+  void reset() {
+    Arrays.fill(live, 0, (top / ALIGN + 63) / 64, 0);
+    Arrays.fill(free, 0);
+    freeBytes = 0;
+    dirty = Math.max(dirty, top);
+    top = RESERVED;
+    allocated = reclaimed = gcNanos = maxPause = 0;
+    collections = 0;
+  }
+
+  // Bytes currently in use by the heap (including the reserved
+  // prefix and free blocks)
+  //
+  int size() { return top; }
+
+  int load(int addr) throws IR1Interp1.IntException {
+    return buf.getInt(check(addr));
+  }
+
+  void store(int addr, int val) throws IR1Interp1.IntException {
+    buf.putInt(check(addr), val);
+  }
+
+  // A word at addr must lie in the payload of a live block. (Two
+  // adjacent live granules are always in the same block, since blocks
+  // are separated by headers.)
+  //
+  int check(int addr) throws IR1Interp1.IntException {
+    if (addr < RESERVED || addr > top - WORD
+	|| !isLive(addr) || !isLive(addr + WORD - 1))
+      throw new IR1Interp1.IntException("Can't find a value at location " + addr);
+    return addr;
+  }
+
+  boolean isLive(int addr) {
+    int g = addr / ALIGN;
+    return (live[g >>> 6] & 1L << g) != 0;
+  }
+
+  // Mark the payload of n bytes at p as live or not
+  //
+  void setLive(int p, int n, boolean on) {
+    for (int g = p / ALIGN, end = (p + n) / ALIGN; g < end; g++)
+      if (on)
+	live[g >>> 6] |= 1L << g;
+      else
+	live[g >>> 6] &= ~(1L << g);
+  }
+
+  //-----------------------------------------------------------------
+  // Blocks and free lists
+  //-----------------------------------------------------------------
+  //
+  int blockSize(int h) { return buf.getInt(h); }
+  int flags(int h)     { return buf.getInt(h + 4); }
+
+  void setHeader(int h, int size, int flags) {
+    buf.putInt(h, size);
+    buf.putInt(h + 4, flags);
+  }
+
+  static int sizeClass(int n) {
+    return n <= CLASSES * ALIGN ? n / ALIGN - 1 : CLASSES;
+  }
+
+  // Put block h (of payload n) on its free list; the link to the
+  // next free block is kept in the payload
+  //
+  void putFree(int h, int n) {
+    int c = sizeClass(n);
+    setLive(h + HEADER, n, false);
+    setHeader(h, n, FREE);
+    buf.putInt(h + HEADER, free[c]);
+    free[c] = h;
+    freeBytes += HEADER + n;
+  }
+
+  // Take a free block of payload n; larger blocks are split. Returns
+  // 0 if there is none.
+  //
+  int takeFree(int n) {
+    int c = sizeClass(n);
+    int h = 0;
+    if (c < CLASSES && free[c] != 0) {
+      h = free[c];
+      free[c] = buf.getInt(h + HEADER);
+    } else {
+      // first fit in the large list
+      int prev = 0;
+      for (int b = free[CLASSES]; b != 0; prev = b, b = buf.getInt(b + HEADER))
+	if (blockSize(b) >= n) {
+	  h = b;
+	  int next = buf.getInt(b + HEADER);
+	  if (prev == 0)
+	    free[CLASSES] = next;
+	  else
+	    buf.putInt(prev + HEADER, next);
+	  break;
+	}
+      if (h == 0)
+	return 0;
+    }
+    int size = blockSize(h);
+    freeBytes -= HEADER + size;
+    if (size - n >= HEADER + ALIGN) {
+      putFree(h + HEADER + n, size - n - HEADER);
+      size = n;
+    }
+    setHeader(h, size, 0);
+    return h;
+  }
+
+  //-----------------------------------------------------------------
+  // Garbage collection
+  //-----------------------------------------------------------------
+  //
+  int[] blocks = new int[0];		// allocated blocks, by address
+  int nblocks;
+  int[] markStack = new int[64];
+  int msp;
+
+  void collect() throws IR1Interp1.IntException {
+    long start = System.nanoTime();
+    nblocks = 0;
+    for (int h = RESERVED; h < top; h += HEADER + blockSize(h)) {
+      int size = blockSize(h);
+      if (size <= 0 || size % ALIGN != 0 || size > top - h - HEADER)
+	throw new IR1Interp1.IntException("Corrupt heap block at location " + h
+					  + " (size " + size + ")");
+      if ((flags(h) & FREE) == 0) {
+	if (nblocks == blocks.length)
+	  blocks = Arrays.copyOf(blocks, Math.max(64, 2 * nblocks));
+	blocks[nblocks++] = h;
+      }
+    }
+    roots.markRoots(this);
+    while (msp > 0) {
+      int h = markStack[--msp];
+      for (int p = h + HEADER; p < h + HEADER + blockSize(h); p += WORD)
+	mark(buf.getInt(p));
+    }
+    sweep();
+    // don't let a mostly live heap be collected on every allocation
+    if (top - freeBytes > buf.capacity() / 2 && buf.capacity() <= Integer.MAX_VALUE / 2
+	&& buf.capacity() < limit)
+      grow(2 * buf.capacity());
+    long pause = System.nanoTime() - start;
+    collections++;
+    gcNanos += pause;
+    maxPause = Math.max(maxPause, pause);
+  }
+
+  // Mark the block v points into, if any
+  //
+  void mark(int v) {
+    if (v < RESERVED + HEADER || v >= top)
+      return;
+    if (nblocks == 0)
+      return;
+    int lo = 0, hi = nblocks - 1;	// last block starting below v
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (blocks[mid] + HEADER <= v)
+	lo = mid;
+      else
+	hi = mid - 1;
+    }
+    int h = blocks[lo];
+    if (v < h + HEADER || v >= h + HEADER + blockSize(h) || (flags(h) & MARK) != 0)
+      return;
+    buf.putInt(h + 4, MARK);
+    if (msp == markStack.length)
+      markStack = Arrays.copyOf(markStack, 2 * msp);
+    markStack[msp++] = h;
+  }
+
+  // Free unmarked blocks, merging adjacent free blocks; a free run at
+  // the end of the heap is given back to the top
+  //
+  void sweep() {
+    Arrays.fill(free, 0);
+    freeBytes = 0;
+    int run = 0;			// start of current free run, or 0
+    int h = RESERVED;
+    while (h < top) {
+      int size = blockSize(h), fl = flags(h);
+      if ((fl & MARK) != 0) {
+	if (run != 0)
+	  putFree(run, h - run - HEADER);
+	run = 0;
+	setHeader(h, size, 0);
+      } else {
+	if ((fl & FREE) == 0) {
+	  reclaimed += HEADER + size;
+	  setLive(h + HEADER, size, false);
+	}
+	if (run == 0)
+	  run = h;
+      }
+      h += HEADER + size;
+    }
+    if (run != 0) {
+      dirty = Math.max(dirty, top);
+      top = run;
+    }
+  }
+
+  // A one-line GC summary
+  //
+  String stats() {
+    return String.format("GC: %d collections, %.3f ms total, %.3f ms max pause, "
+			 + "%d bytes reclaimed, heap %d bytes (%d free)",
+			 collections, gcNanos / 1e6, maxPause / 1e6,
+			 reclaimed, top, freeBytes);
+  }
+
+}
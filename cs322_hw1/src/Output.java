@@ -0,0 +1,118 @@
+//
+// Buffered output sink for the IR1 print functions.
+//
+// Printed text is formatted straight into one reusable byte buffer
+// (ints without creating Strings) and written to the underlying
+// channel only when the buffer fills up, or on flush(). Interpreter
+// flushes at program exit and when a program fails, so output order
+// is the same as with per-line printing.
+//
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+class Output {
+  static final int SIZE = 1 << 16;
+  static final int MAX_INT_LEN = 12;	// "-2147483648\n"
+  static final byte[] TRUE = "true\n".getBytes();
+  static final byte[] FALSE = "false\n".getBytes();
+
+  final WritableByteChannel channel;
+  final byte[] buf = new byte[SIZE];
+  final ByteBuffer bb = ByteBuffer.wrap(buf);
+  int len = 0;
+
+  Output(WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  Output(OutputStream stream) {
+    this(Channels.newChannel(stream));
+  }
+
+  // The process's standard output, written through a FileChannel
+  // (bypassing System.out and its per-line flushing)
+  //
+  static Output stdout() {
+    return new Output(new FileOutputStream(FileDescriptor.out).getChannel());
+  }
+
+  // A file, written through a FileChannel
+  //
+  static Output file(String name) throws IOException {
+    return new Output(new FileOutputStream(name).getChannel());
+  }
+
+  void printInt(int i) throws IOException {
+    if (len > SIZE - MAX_INT_LEN)
+      flush();
+    // digits are generated backwards, from the least significant one
+    long v = i;
+    boolean neg = v < 0;
+    if (neg)
+      v = -v;
+    int end = len + MAX_INT_LEN;
+    int p = end;
+    buf[--p] = '\n';
+    do {
+      buf[--p] = (byte) ('0' + v % 10);
+      v /= 10;
+    } while (v != 0);
+    if (neg)
+      buf[--p] = '-';
+    int n = end - p;
+    System.arraycopy(buf, p, buf, len, n);
+    len += n;
+  }
+
+  void printBool(boolean b) throws IOException {
+    write(b ? TRUE : FALSE);
+  }
+
+  void printStr(String s) throws IOException {
+    int n = s.length();
+    if (len + n + 1 > SIZE)
+      flush();
+    if (n + 1 <= SIZE) {
+      int i = 0;
+      for (; i < n; i++) {		// ASCII fast path
+	char c = s.charAt(i);
+	if (c >= 0x80)
+	  break;
+	buf[len + i] = (byte) c;
+      }
+      if (i == n) {
+	len += n;
+	buf[len++] = '\n';
+	return;
+      }
+    }
+    write(s.getBytes());
+    println();
+  }
+
+  void println() throws IOException {
+    if (len == SIZE)
+      flush();
+    buf[len++] = '\n';
+  }
+
+  void write(byte[] b) throws IOException {
+    if (len + b.length > SIZE)
+      flush();
+    if (b.length > SIZE) {
+      channel.write(ByteBuffer.wrap(b));
+      return;
+    }
+    System.arraycopy(b, 0, buf, len, b.length);
+    len += b.length;
+  }
+
+  void flush() throws IOException {
+    bb.clear().limit(len);
+    while (bb.hasRemaining())
+      channel.write(bb);
+    len = 0;
+  }
+
+}
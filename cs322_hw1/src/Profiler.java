@@ -0,0 +1,209 @@
+//
+// Instruction-level profiler for the IR1 interpreter.
+//
+// Profiling runs on the closure engine: when a profiler is installed
+// in a program's IR1VM, IR1Closure wraps every node it compiles in a counting node (see
+// instrument()). Without a profiler no wrappers exist, so profiling
+// costs nothing when it is off.
+//
+// Per function it records
+//  - executions of each instruction (and, summed up, of each opcode)
+//  - taken/not-taken counts of each conditional jump
+//  - call count, and inclusive/exclusive time
+//  - bytes malloc'ed at each call site
+// and writes a flat report plus a collapsed-stack file (one
+// "main;f;g <count>" line per call path, weighted by instructions
+// executed exclusively in that path) for flame-graph tools.
+//
+import java.io.*;
+import java.util.*;
+
+class Profiler {
+
+  // Profile data of one function
+  //
+  static class FuncProfile {
+    final IR1VM.Code code;
+    long calls;
+    long inclNanos, exclNanos;
+    long insts;				// executed exclusively in this function
+    final long[] counts;		// indexed by pc
+    final long[] taken, notTaken;
+    final long[] mallocBytes;
+
+    FuncProfile(IR1VM.Code code) {
+      this.code = code;
+      counts = new long[code.code.length];
+      taken = new long[code.code.length];
+      notTaken = new long[code.code.length];
+      mallocBytes = new long[code.code.length];
+    }
+  }
+
+  // An active call
+  //
+  static class Activation {
+    final FuncProfile prof;
+    final String path;			// collapsed stack
+    final long start, startInsts;
+    long childNanos, childInsts;
+
+    Activation(FuncProfile prof, String path, long startInsts) {
+      this.prof = prof;
+      this.path = path;
+      this.startInsts = startInsts;
+      this.start = System.nanoTime();
+    }
+  }
+
+  HashMap<IR1VM.Code,FuncProfile> profiles = new LinkedHashMap<IR1VM.Code,FuncProfile>();
+  ArrayList<Activation> stack = new ArrayList<Activation>();
+  HashMap<String,Long> folded = new LinkedHashMap<String,Long>();
+  long executed;			// total instructions
+
+  FuncProfile profile(IR1VM.Code c) {
+    FuncProfile p = profiles.get(c);
+    if (p == null) {
+      p = new FuncProfile(c);
+      profiles.put(c, p);
+    }
+    return p;
+  }
+
+  //-----------------------------------------------------------------
+  // Call tracking
+  //-----------------------------------------------------------------
+  //
+  void enter(IR1VM.Code c) {
+    FuncProfile p = profile(c);
+    p.calls++;
+    String path = stack.isEmpty() ? c.name
+      : stack.get(stack.size() - 1).path + ";" + c.name;
+    stack.add(new Activation(p, path, executed));
+  }
+
+  void exit() {
+    Activation a = stack.remove(stack.size() - 1);
+    long nanos = System.nanoTime() - a.start;
+    long insts = executed - a.startInsts;
+    boolean recursive = false;
+    for (Activation b: stack)
+      recursive |= b.prof == a.prof;
+    if (!recursive)		// count recursive time once
+      a.prof.inclNanos += nanos;
+    a.prof.exclNanos += nanos - a.childNanos;
+    a.prof.insts += insts - a.childInsts;
+    Long old = folded.get(a.path);
+    folded.put(a.path, (old == null ? 0 : old) + insts - a.childInsts);
+    if (!stack.isEmpty()) {
+      Activation caller = stack.get(stack.size() - 1);
+      caller.childNanos += nanos;
+      caller.childInsts += insts;
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Instrumentation
+  //-----------------------------------------------------------------
+  //
+  // Wrap node n, compiled from the instruction at pc of c; next is
+  // the node index that follows it.
+  //
+  IR1Closure.Node instrument(final IR1VM vm, IR1VM.Code c, int pc,
+			     final int next, final IR1Closure.Node n) {
+    final FuncProfile p = profile(c);
+    final long[] counts = p.counts;
+    final int i = pc;
+    switch (c.code[pc]) {
+    case IR1VM.IFEQ: case IR1VM.IFNE: case IR1VM.IFLT:
+    case IR1VM.IFLE: case IR1VM.IFGT: case IR1VM.IFGE:
+      return new IR1Closure.Node() { int exec(long[] f) throws Exception {
+	counts[i]++;
+	executed++;
+	int r = n.exec(f);
+	if (r == next)
+	  p.notTaken[i]++;
+	else
+	  p.taken[i]++;
+	return r;
+      } };
+    case IR1VM.CALL:
+      final IR1VM.Code callee = vm.codes[c.code[pc+1]];
+      return new IR1Closure.Node() { int exec(long[] f) throws Exception {
+	counts[i]++;
+	executed++;
+	enter(callee);
+	try {
+	  return n.exec(f);
+	} finally {
+	  exit();
+	}
+      } };
+    case IR1VM.MALLOC:
+      return new IR1Closure.Node() { int exec(long[] f) throws Exception {
+	counts[i]++;
+	executed++;
+	long before = vm.heap.allocated;
+	int r = n.exec(f);
+	p.mallocBytes[i] += vm.heap.allocated - before;
+	return r;
+      } };
+    default:
+      return new IR1Closure.Node() { int exec(long[] f) throws Exception {
+	counts[i]++;
+	executed++;
+	return n.exec(f);
+      } };
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Reports
+  //-----------------------------------------------------------------
+  //
+  void writeReport(PrintWriter out) {
+    long[] opCounts = new long[IR1VM.opNames.length];
+    out.println("# IR1 profile: " + executed + " instructions");
+    for (FuncProfile p: profiles.values()) {
+      out.println();
+      out.printf("_%s: calls %d, incl %.3f ms, excl %.3f ms, insts %d%n",
+		 p.code.name, p.calls, p.inclNanos / 1e6, p.exclNanos / 1e6, p.insts);
+      out.printf("  %10s %10s %10s %10s  %s%n", "count", "taken", "not-taken",
+		 "malloc", "instruction");
+      int[] code = p.code.code;
+      for (int pc = 0; pc < code.length; pc += IR1VM.length(code, pc)) {
+	opCounts[code[pc]] += p.counts[pc];
+	boolean branch = code[pc] >= IR1VM.IFEQ && code[pc] <= IR1VM.IFGE;
+	String src = p.code.source[pc];
+	out.printf("  %10d %10s %10s %10s %s", p.counts[pc],
+		   branch ? "" + p.taken[pc] : "",
+		   branch ? "" + p.notTaken[pc] : "",
+		   code[pc] == IR1VM.MALLOC ? "" + p.mallocBytes[pc] : "",
+		   src == null ? " (end)\n" : src);
+      }
+    }
+    out.println();
+    out.println("# Opcode counts");
+    for (int op = 0; op < opCounts.length; op++)
+      if (opCounts[op] > 0)
+	out.printf("  %-8s %d%n", IR1VM.opNames[op], opCounts[op]);
+  }
+
+  void writeFolded(PrintWriter out) {
+    for (Map.Entry<String,Long> me: folded.entrySet())
+      if (me.getValue() > 0)
+	out.println(me.getKey() + " " + me.getValue());
+  }
+
+  // Write <base>.prof and <base>.folded
+  //
+  void write(String base) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(base + ".prof"));
+    writeReport(out);
+    out.close();
+    out = new PrintWriter(new FileWriter(base + ".folded"));
+    writeFolded(out);
+    out.close();
+  }
+
+}
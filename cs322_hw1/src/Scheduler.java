@@ -0,0 +1,126 @@
+//
+// Time-sliced scheduler for IR1 programs.
+//
+// Runs many programs side by side on a fixed pool of carrier
+// threads. Each program runs on its own preemptible IR1VM (see
+// IR1VM.resume()) for one slice of fuel at a time, then goes to the
+// back of a shared FIFO run queue, so programs take turns round-robin
+// and a program that never terminates only ever holds a carrier for
+// one slice. Per-program quotas bound the total fuel (calls plus
+// back edges), heap and stack a program may use; a program that
+// exceeds one fails with an IntException, like any other run-time
+// error. The stack quota has a default, so that a runaway recursion
+// fails on its own rather than exhausting the JVM's memory.
+//
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import ir1.*;
+
+class Scheduler {
+
+  // One scheduled program
+  //
+  class Task {
+    final Interpreter.Result result;
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    Output out;
+    IR1VM vm;
+
+    Task(String file) { result = new Interpreter.Result(file); }
+
+    // Run one slice; returns true when the program is done
+    //
+    boolean step() {
+      long start = System.nanoTime();
+      try {
+	if (vm == null) {
+	  out = outFiles ? Output.file(IR1Interp1.baseName(result.file) + ".out")
+	    : new Output(buf);
+	  Memory heap = new Memory();
+	  heap.limit = heapQuota;
+	  vm = new IR1VM(heap, out);
+	  vm.slice = slice;
+	  vm.quota = fuelQuota;
+	  vm.stackLimit = stackQuota;
+	  vm.start(Interpreter.parse(result.file));
+	}
+	if (!vm.resume())
+	  return false;
+      } catch (Throwable e) {
+	result.error = e;
+      } finally {
+	result.nanos += System.nanoTime() - start;
+      }
+      finish();
+      return true;
+    }
+
+    void finish() {
+      if (out != null) {
+	try {
+	  out.flush();
+	  out.channel.close();
+	} catch (IOException e) {
+	  if (result.error == null)
+	    result.error = e;
+	}
+      }
+      if (!outFiles)
+	result.output = buf.toString();
+      vm = null;			// free the program's memory
+    }
+  }
+
+  final int nthreads;
+  long slice = 100000;			// fuel per slice
+  long fuelQuota = Long.MAX_VALUE;
+  long heapQuota = Integer.MAX_VALUE;
+  long stackQuota = 1 << 26;		// bytes (see IR1VM.push())
+  boolean outFiles = false;		// output to <file>.out
+
+  Scheduler(int nthreads) {
+    this.nthreads = nthreads;
+  }
+
+  // Run the programs in files; results (with the program's output,
+  // unless outFiles is set) come back in the order of files
+  //
+  List<Interpreter.Result> runAll(List<String> files) throws InterruptedException {
+    final BlockingQueue<Task> ready = new LinkedBlockingQueue<Task>();
+    final List<Task> tasks = new ArrayList<Task>();
+    for (String file: files)
+      tasks.add(new Task(file));
+    ready.addAll(tasks);
+    final CountDownLatch done = new CountDownLatch(tasks.size());
+    ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+    try {
+      for (int i = 0; i < nthreads; i++)
+	pool.execute(new Runnable() {
+	  public void run() {
+	    try {
+	      while (done.getCount() > 0) {
+		Task t = ready.poll(10, TimeUnit.MILLISECONDS);
+		if (t == null)
+		  continue;
+		if (t.step())
+		  done.countDown();
+		else
+		  ready.add(t);
+	      }
+	    } catch (InterruptedException e) {
+	      // shutting down
+	    }
+	  }
+	});
+      done.await();
+    } finally {
+      pool.shutdownNow();
+    }
+    List<Interpreter.Result> results = new ArrayList<Interpreter.Result>();
+    for (Task t: tasks)
+      results.add(t.result);
+    return results;
+  }
+
+}
@@ -34,6 +34,7 @@ public class IR1 {
     public final String[] params;
     public final String[] locals;
     public final Inst[] code;
+    public Dest[] syms;		// interned Ids and Temps, by slot (see Symbols)
 
     Func(String n, String[] p, String[] l, Inst[] c) {
       name=n; params=p; locals=l; code=c; 
@@ -138,6 +139,7 @@ public class IR1 {
     public final String name;
     public final Dest rdst;    // could be null
     public final Src[] args;
+    public int callee = -1;	// call target, set by the interpreter's loader
 
     Call(String n, Src[] a, Dest r) { 
       name=n; args=a; rdst=r;
@@ -216,6 +218,7 @@ public class IR1 {
   public static class Label {
     static int labelnum=0;
     public String name;
+    public int target = -1;	// index of its LabelDec, set by Symbols
 
     Label() { name = "L" + labelnum++; }
     Label(String s) { name = s; }
@@ -255,6 +258,7 @@ public class IR1 {
 
   public static class Id implements Src, Dest  {
     public final String name;
+    public int slot = -1;	// set by Symbols (the interpreter's frame slot)
 
     Id(String s) { name=s; }
     public String toString() { return name; }
@@ -263,6 +267,7 @@ public class IR1 {
   public static class Temp implements Src, Dest  {
     private static int cnt=0;
     public final int num;
+    public int slot = -1;	// set by Symbols (the interpreter's frame slot)
 
     Temp() { num = ++Temp.cnt; }
     Temp(int n) { num=n; }
@@ -0,0 +1,436 @@
+// Binary encoding of IR1 programs.
+//
+// The text format stays the interchange format; the binary one is a
+// cache that loads without the parser. Layout (all offsets are from
+// the start of the file, fixed-width ints are little-endian u32):
+//
+//   header:    "IR1B" version nstrings nfuncs <functions offset>
+//   strings:   nstrings offsets, then each string as
+//              <varint length> <UTF-8 bytes>
+//   functions: nfuncs (name, offset) pairs, then each function as
+//              <params> <locals> <ninsts> {inst}
+//
+// Names, labels and string literals are indexes into the string
+// table. Instructions are an opcode byte followed by their operands,
+// all varints (ints zigzag-encoded); operands are a kind byte and a
+// varint. The fixed-width tables give random access to any function
+// or string, so Reader can decode lazily.
+//
+package ir1;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import ir1.IR1.*;
+
+public class IR1Binary {
+  static final int MAGIC = 0x42315249;		// "IR1B"
+  static final int VERSION = 1;
+  static final int HEADER = 20;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // Opcodes
+  static final int BINOP = 0, UNOP = 1, MOVE = 2, LOAD = 3, STORE = 4,
+    CALL = 5, CALLR = 6, RETURN = 7, RETURNV = 8, CJUMP = 9, JUMP = 10,
+    LABEL = 11;
+
+  // Operand kinds
+  static final int ID = 0, TEMP = 1, INT = 2, FALSE = 3, TRUE = 4, STR = 5;
+
+  // Does the file start with the binary magic?
+  //
+  public static boolean isBinary(String file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      return Integer.reverseBytes(in.readInt()) == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Writer
+  //-----------------------------------------------------------------
+  //
+  public static void write(Program p, String file) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(encode(p));
+    } finally {
+      out.close();
+    }
+  }
+
+  public static byte[] encode(Program p) {
+    return new Writer().encode(p);
+  }
+
+  static class Writer {
+    final HashMap<String,Integer> strIdx = new HashMap<String,Integer>();
+    final ArrayList<String> strings = new ArrayList<String>();
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+    int str(String s) {
+      Integer i = strIdx.get(s);
+      if (i == null) {
+	i = strings.size();
+	strIdx.put(s, i);
+	strings.add(s);
+      }
+      return i;
+    }
+
+    void u32(int v) {
+      buf.write(v); buf.write(v >>> 8); buf.write(v >>> 16); buf.write(v >>> 24);
+    }
+
+    void varint(int v) {
+      while ((v & ~0x7f) != 0) {
+	buf.write((v & 0x7f) | 0x80);
+	v >>>= 7;
+      }
+      buf.write(v);
+    }
+
+    void sint(int v) { varint((v << 1) ^ (v >> 31)); }
+
+    byte[] encode(Program p) {
+      // function bodies first, so that the string table is complete
+      int[] names = new int[p.funcs.length];
+      int[] offsets = new int[p.funcs.length];
+      for (int i = 0; i < p.funcs.length; i++) {
+	names[i] = str(p.funcs[i].name);
+	offsets[i] = buf.size();
+	func(p.funcs[i]);
+      }
+      byte[] bodies = buf.toByteArray();
+
+      ByteArrayOutputStream strs = new ByteArrayOutputStream();
+      int[] strOffsets = new int[strings.size()];
+      buf = strs;
+      for (int i = 0; i < strings.size(); i++) {
+	strOffsets[i] = strs.size();
+	byte[] b = strings.get(i).getBytes(UTF8);
+	varint(b.length);
+	strs.write(b, 0, b.length);
+      }
+      byte[] strBytes = strs.toByteArray();
+
+      buf = new ByteArrayOutputStream();
+      int strBase = HEADER + 4 * strings.size();
+      int funcTable = strBase + strBytes.length;
+      int funcBase = funcTable + 8 * p.funcs.length;
+      u32(MAGIC); u32(VERSION); u32(strings.size()); u32(p.funcs.length); u32(funcTable);
+      for (int off: strOffsets)
+	u32(strBase + off);
+      buf.write(strBytes, 0, strBytes.length);
+      for (int i = 0; i < p.funcs.length; i++) {
+	u32(names[i]);
+	u32(funcBase + offsets[i]);
+      }
+      buf.write(bodies, 0, bodies.length);
+      return buf.toByteArray();
+    }
+
+    void func(Func f) {
+      varint(f.params.length);
+      for (String s: f.params)
+	varint(str(s));
+      varint(f.locals.length);
+      for (String s: f.locals)
+	varint(str(s));
+      varint(f.code.length);
+      for (Inst inst: f.code)
+	inst(inst);
+    }
+
+    void inst(Inst inst) {
+      if (inst instanceof Binop) {
+	Binop n = (Binop) inst;
+	buf.write(BINOP);
+	varint(n.op instanceof AOP ? ((AOP) n.op).ordinal()
+	       : AOP.values().length + ((ROP) n.op).ordinal());
+	operand(n.dst); operand(n.src1); operand(n.src2);
+      } else if (inst instanceof Unop) {
+	Unop n = (Unop) inst;
+	buf.write(UNOP);
+	varint(n.op.ordinal());
+	operand(n.dst); operand(n.src);
+      } else if (inst instanceof Move) {
+	Move n = (Move) inst;
+	buf.write(MOVE);
+	operand(n.dst); operand(n.src);
+      } else if (inst instanceof Load) {
+	Load n = (Load) inst;
+	buf.write(LOAD);
+	operand(n.dst); addr(n.addr);
+      } else if (inst instanceof Store) {
+	Store n = (Store) inst;
+	buf.write(STORE);
+	addr(n.addr); operand(n.src);
+      } else if (inst instanceof Call) {
+	Call n = (Call) inst;
+	buf.write(n.rdst == null ? CALL : CALLR);
+	varint(str(n.name));
+	varint(n.args.length);
+	for (Src s: n.args)
+	  operand(s);
+	if (n.rdst != null)
+	  operand(n.rdst);
+      } else if (inst instanceof Return) {
+	Return n = (Return) inst;
+	buf.write(n.val == null ? RETURN : RETURNV);
+	if (n.val != null)
+	  operand(n.val);
+      } else if (inst instanceof CJump) {
+	CJump n = (CJump) inst;
+	buf.write(CJUMP);
+	varint(n.op.ordinal());
+	operand(n.src1); operand(n.src2);
+	varint(str(n.lab.name));
+      } else if (inst instanceof Jump) {
+	buf.write(JUMP);
+	varint(str(((Jump) inst).lab.name));
+      } else if (inst instanceof LabelDec) {
+	buf.write(LABEL);
+	varint(str(((LabelDec) inst).name));
+      } else {
+	throw new IllegalArgumentException("Unknown IR1 inst: " + inst);
+      }
+    }
+
+    void addr(Addr a) {
+      operand(a.base);
+      sint(a.offset);
+    }
+
+    void operand(Object o) {
+      if (o instanceof Id) {
+	buf.write(ID); varint(str(((Id) o).name));
+      } else if (o instanceof Temp) {
+	buf.write(TEMP); varint(((Temp) o).num);
+      } else if (o instanceof IntLit) {
+	buf.write(INT); sint(((IntLit) o).i);
+      } else if (o instanceof BoolLit) {
+	buf.write(((BoolLit) o).b ? TRUE : FALSE);
+      } else if (o instanceof StrLit) {
+	buf.write(STR); varint(str(((StrLit) o).s));
+      } else {
+	throw new IllegalArgumentException("Unknown IR1 operand: " + o);
+      }
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Reader
+  //-----------------------------------------------------------------
+  //
+  // Decodes from a (typically memory-mapped) buffer on demand:
+  // strings and functions are decoded on first use, and cached, with
+  // each function's operands and labels interned (see Symbols). A
+  // Reader is not thread-safe.
+  //
+  public static class Reader {
+    final ByteBuffer buf;
+    final String[] strings;
+    final Func[] funcs;
+    final int funcTable;
+    int pos;
+    Symbols syms;			// of the function being decoded
+    int index;				// of the inst being decoded
+
+    public Reader(ByteBuffer b) throws IOException {
+      buf = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      if (buf.remaining() < HEADER || buf.getInt(0) != MAGIC)
+	throw new IOException("Not a binary IR1 file");
+      if (buf.getInt(4) != VERSION)
+	throw new IOException("Unsupported binary IR1 version " + buf.getInt(4));
+      strings = new String[buf.getInt(8)];
+      funcs = new Func[buf.getInt(12)];
+      funcTable = buf.getInt(16);
+    }
+
+    // Memory-map file
+    //
+    public static Reader map(String file) throws IOException {
+      RandomAccessFile f = new RandomAccessFile(file, "r");
+      try {
+	return new Reader(f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length()));
+      } finally {
+	f.close();			// the mapping stays valid
+      }
+    }
+
+    public int funcCount() { return funcs.length; }
+
+    // Name of function i, without decoding it
+    //
+    public String funcName(int i) {
+      return string(buf.getInt(funcTable + 8 * i));
+    }
+
+    // Index of the function with the given name, or -1
+    //
+    public int funcIndex(String name) {
+      for (int i = 0; i < funcs.length; i++)
+	if (funcName(i).equals(name))
+	  return i;
+      return -1;
+    }
+
+    public Func func(int i) {
+      if (funcs[i] == null) {
+	pos = buf.getInt(funcTable + 8 * i + 4);
+	funcs[i] = decodeFunc(funcName(i));
+      }
+      return funcs[i];
+    }
+
+    public Program program() {
+      Func[] fs = new Func[funcs.length];
+      for (int i = 0; i < fs.length; i++)
+	fs[i] = func(i);
+      return new Program(fs);
+    }
+
+    String string(int i) {
+      if (strings[i] == null) {
+	int save = pos;
+	pos = buf.getInt(HEADER + 4 * i);
+	int len = varint();
+	byte[] b = new byte[len];
+	for (int k = 0; k < len; k++)
+	  b[k] = buf.get(pos + k);
+	strings[i] = new String(b, UTF8);
+	pos = save;
+      }
+      return strings[i];
+    }
+
+    int varint() {
+      int v = 0;
+      for (int shift = 0; ; shift += 7) {
+	int b = buf.get(pos++);
+	v |= (b & 0x7f) << shift;
+	if (b >= 0)
+	  return v;
+      }
+    }
+
+    int sint() {
+      int v = varint();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    String[] names() {
+      String[] a = new String[varint()];
+      for (int i = 0; i < a.length; i++)
+	a[i] = string(varint());
+      return a;
+    }
+
+    Func decodeFunc(String name) {
+      String[] params = names();
+      String[] locals = names();
+      syms = new Symbols(params, locals);
+      Inst[] code = new Inst[varint()];
+      for (index = 0; index < code.length; index++)
+	code[index] = inst();
+      return syms.func(name, params, locals, code);
+    }
+
+    Inst inst() {
+      int op = buf.get(pos++);
+      switch (op) {
+      case BINOP: {
+	int o = varint();
+	int naops = AOP.values().length;
+	BOP bop = o < naops ? AOP.values()[o] : ROP.values()[o - naops];
+	Dest d = dest();
+	Src s1 = src();
+	return new Binop(bop, d, s1, src());
+      }
+      case UNOP: {
+	UOP uop = UOP.values()[varint()];
+	Dest d = dest();
+	return new Unop(uop, d, src());
+      }
+      case MOVE: {
+	Dest d = dest();
+	return new Move(d, src());
+      }
+      case LOAD: {
+	Dest d = dest();
+	return new Load(d, addr());
+      }
+      case STORE: {
+	Addr a = addr();
+	return new Store(a, src());
+      }
+      case CALL: case CALLR: {
+	String name = string(varint());
+	Src[] args = new Src[varint()];
+	for (int i = 0; i < args.length; i++)
+	  args[i] = src();
+	return new Call(name, args, op == CALLR ? dest() : null);
+      }
+      case RETURN:
+	return new Return();
+      case RETURNV:
+	return new Return(src());
+      case CJUMP: {
+	ROP rop = ROP.values()[varint()];
+	Src s1 = src();
+	Src s2 = src();
+	return new CJump(rop, s1, s2, syms.label(string(varint())));
+      }
+      case JUMP:
+	return new Jump(syms.label(string(varint())));
+      case LABEL:
+	return new LabelDec(syms.define(string(varint()), index).name);
+      default:
+	throw new IllegalStateException("Bad binary IR1 opcode " + op + " at " + (pos-1));
+      }
+    }
+
+    Addr addr() {
+      Src base = src();
+      return new Addr(base, sint());
+    }
+
+    Dest dest() {
+      return (Dest) src();
+    }
+
+    Src src() {
+      int kind = buf.get(pos++);
+      switch (kind) {
+      case ID:    return syms.id(string(varint()));
+      case TEMP:  return syms.temp(varint());
+      case INT:   return new IntLit(sint());
+      case FALSE: return new BoolLit(false);
+      case TRUE:  return new BoolLit(true);
+      case STR:   return new StrLit(string(varint()));
+      default:
+	throw new IllegalStateException("Bad binary IR1 operand kind " + kind + " at " + (pos-1));
+      }
+    }
+  }
+
+  // Convert text IR1 files to binary: <file>.ir -> <file>.irb
+  //
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.out.println("Usage: java ir1.IR1Binary <file>.ir ...");
+      return;
+    }
+    for (String file: args) {
+      String base = file.endsWith(".ir") ? file.substring(0, file.length() - 3) : file;
+      write(Parser.parse(file), base + ".irb");
+    }
+  }
+
+}
@@ -0,0 +1,698 @@
+// Hand-written IR1 parser.
+//
+// A reentrant replacement for the JavaCC-generated ir1Parser: the
+// lexer scans a byte array directly (no char stream, no Token
+// objects), and the parser is recursive descent with one token of
+// lookahead, building the same IR1 nodes. The grammar is ir1Parser's,
+// left-factored where it needed syntactic lookahead:
+//
+//   Inst -> Dest ( "=" Rhs | ":" )	// Id ":" is a LabelDec
+//         | Addr "=" Src		// Store
+//         | "call" ...  | "return" [Src]  | "if" ...  | "goto" Label
+//   Rhs  -> [IntLit] "[" Src "]"		// Load
+//         | UOP Src  | "call" <Global> ArgList  | Src [BOP Src]
+//
+// Each function's operands and labels are interned as they are parsed
+// (see Symbols). A Parser instance parses one input, and is not
+// thread-safe; any number of instances can run at once. Token kinds are those of
+// ir1ParserConstants.
+//
+package ir1;
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Parser implements ir1ParserConstants {
+  static final int GOTO = 5, IF = 6, CALL = 7, RETURN = 8,
+    EOL = 17, LBRACE = 18, RBRACE = 19, LPAREN = 20, COMMA = 21, RPAREN = 22,
+    ASSIGN = 23, COLON = 24, LBRACK = 25, RBRACK = 26,
+    ADD = 27, SUB = 28, MUL = 29, DIV = 30, AND = 31, OR = 32,
+    EQ = 33, NE = 34, LT = 35, LE = 36, GT = 37, GE = 38, NOT = 39;
+  static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  final byte[] b;
+  final int end;
+  int pos;			// next byte to scan
+  int kind;			// current token
+  int start, stop;		// its bytes
+  int ival;			// its value (IntLit, Temp)
+  int line = 1, lineStart;	// for error messages
+  IR1.Inst[] insts = new IR1.Inst[256];	// scratch buffers
+  IR1.Src[] argBuf = new IR1.Src[16];
+  Symbols syms;			// of the current function
+
+  public Parser(byte[] b, int pos, int end) {
+    this.b = b;
+    this.pos = pos;
+    this.end = end;
+  }
+
+  public Parser(byte[] b) { this(b, 0, b.length); }
+
+  public Parser(ByteBuffer buf) {
+    this(bytes(buf));
+  }
+
+  static byte[] bytes(ByteBuffer buf) {
+    if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0
+	&& buf.remaining() == buf.array().length)
+      return buf.array();
+    byte[] a = new byte[buf.remaining()];
+    buf.duplicate().get(a);
+    return a;
+  }
+
+  // Parse a text IR1 file; large ones are parsed in parallel
+  //
+  public static IR1.Program parse(String file) throws IOException, ParseException {
+    RandomAccessFile f = new RandomAccessFile(file, "r");
+    try {
+      byte[] a = new byte[(int) f.length()];
+      f.readFully(a);
+      if (a.length >= PARALLEL_MIN && Runtime.getRuntime().availableProcessors() > 1)
+	return parseParallel(a, pool());
+      return new Parser(a).program();
+    } finally {
+      f.close();
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Lexer
+  //-----------------------------------------------------------------
+  //
+  // Character classes of ASCII bytes
+  //
+  static final int LETTER = 1, DIGIT = 2, ID_CHAR = 4, BLANK = 8;
+  static final byte[] CLASS = new byte[128];
+  static {
+    for (int c = 0; c < 128; c++) {
+      int k = 0;
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'))
+	k = LETTER | ID_CHAR;
+      else if (c >= '0' && c <= '9')
+	k = DIGIT | ID_CHAR;
+      else if (c == '_')
+	k = ID_CHAR;
+      else if (c == ' ' || c == '\t' || c == '\r')
+	k = BLANK;
+      CLASS[c] = (byte) k;
+    }
+  }
+
+  // (bytes are signed, so non-ASCII ones are < 0)
+  static boolean is(int c, int cls) {
+    return c >= 0 && (CLASS[c] & cls) != 0;
+  }
+
+  static boolean isLetter(int c) { return is(c, LETTER); }
+  static boolean isDigit(int c)  { return is(c, DIGIT); }
+  static boolean isIdChar(int c) { return is(c, ID_CHAR); }
+
+  // Scan the next token
+  //
+  void next() throws ParseException {
+    final byte[] b = this.b;
+    int p = pos;
+    while (true) {			// skip blanks and comments
+      if (p == end) {
+	start = stop = pos = p;
+	kind = EOF;
+	return;
+      }
+      int c = b[p];
+      if (is(c, BLANK)) {
+	p++;
+      } else if (c == '#') {
+	while (p < end && b[p] != '\n')
+	  p++;
+      } else {
+	break;
+      }
+    }
+    start = p;
+    int c = b[p++];
+    switch (c) {
+    case '\n':
+      kind = EOL;
+      line++;
+      lineStart = p;
+      break;
+    case '{': kind = LBRACE; break;
+    case '}': kind = RBRACE; break;
+    case '(': kind = LPAREN; break;
+    case ')': kind = RPAREN; break;
+    case ',': kind = COMMA; break;
+    case ':': kind = COLON; break;
+    case '[': kind = LBRACK; break;
+    case ']': kind = RBRACK; break;
+    case '+': kind = ADD; break;
+    case '-': kind = SUB; break;
+    case '*': kind = MUL; break;
+    case '/': kind = DIV; break;
+    case '=':
+      if (p < end && b[p] == '=') { p++; kind = EQ; } else kind = ASSIGN;
+      break;
+    case '!':
+      if (p < end && b[p] == '=') { p++; kind = NE; } else kind = NOT;
+      break;
+    case '<':
+      if (p < end && b[p] == '=') { p++; kind = LE; } else kind = LT;
+      break;
+    case '>':
+      if (p < end && b[p] == '=') { p++; kind = GE; } else kind = GT;
+      break;
+    case '&': case '|':
+      if (p == end || b[p] != c)
+	throw error(p - 1, "Lexical error at ");
+      p++;
+      kind = c == '&' ? AND : OR;
+      break;
+    case '"':
+      while (p < end && b[p] != '"' && b[p] != '\n')
+	p++;
+      if (p == end || b[p] != '"')
+	throw error(start, "Unterminated string at ");
+      p++;
+      kind = StrLit;
+      break;
+    case '_':
+      if (p == end || !isLetter(b[p]))
+	throw error(start, "Lexical error at ");
+      while (p < end && isIdChar(b[p]))
+	p++;
+      kind = Global;
+      break;
+    default:
+      if (isDigit(c)) {
+	long v = c - '0';
+	while (p < end && isDigit(b[p])) {
+	  v = v * 10 + b[p++] - '0';
+	  if (v > Integer.MAX_VALUE)
+	    throw error(start, "Integer literal out of range at ");
+	}
+	ival = (int) v;
+	kind = IntLit;
+      } else if (isLetter(c)) {
+	while (p < end && isIdChar(b[p]))
+	  p++;
+	kind = keyword(start, p - start);
+	if (kind == Id && c == 't' && p - start > 1) {	// Temp: "t" digits
+	  long v = 0;
+	  int q = start + 1;
+	  while (q < p && isDigit(b[q]) && v <= Integer.MAX_VALUE)
+	    v = v * 10 + b[q++] - '0';
+	  if (q == p) {
+	    if (v > Integer.MAX_VALUE)
+	      throw error(start, "Temp number out of range at ");
+	    ival = (int) v;
+	    kind = Temp;
+	  }
+	}
+      } else {
+	throw error(start, "Lexical error at ");
+      }
+    }
+    stop = pos = p;
+  }
+
+  // Keywords and BoolLits, which would otherwise scan as Ids
+  //
+  int keyword(int s, int n) {
+    switch (n) {
+    case 2:
+      if (b[s] == 'i' && b[s+1] == 'f') return IF;
+      break;
+    case 4:
+      if (is(s, "goto")) return GOTO;
+      if (is(s, "call")) return CALL;
+      if (is(s, "true")) return BoolLit;
+      break;
+    case 5:
+      if (is(s, "false")) return BoolLit;
+      break;
+    case 6:
+      if (is(s, "return")) return RETURN;
+      break;
+    }
+    return Id;
+  }
+
+  boolean is(int s, String word) {
+    for (int i = 0; i < word.length(); i++)
+      if (b[s+i] != word.charAt(i))
+	return false;
+    return true;
+  }
+
+  String text() {
+    return name(start, stop);
+  }
+
+  // Names repeat a lot, so each distinct one becomes a String only
+  // once per parse (names[] is an open-addressing hash table)
+  //
+  String[] names = new String[1024];
+  int nnames = 0;
+
+  String name(int s, int e) {
+    int h = 0;
+    for (int i = s; i < e; i++)
+      h = 31 * h + b[i];
+    int mask = names.length - 1;
+    for (int i = h & mask; ; i = (i + 1) & mask) {
+      String n = names[i];
+      if (n == null)
+	break;
+      if (n.length() == e - s && is(s, n))
+	return n;
+    }
+    if (2 * ++nnames > names.length) {
+      String[] old = names;
+      names = new String[2 * old.length];
+      for (String n: old)
+	if (n != null)
+	  insert(n);
+    }
+    String n = new String(b, s, e - s, LATIN1);
+    insert(n);
+    return n;
+  }
+
+  void insert(String n) {
+    int mask = names.length - 1;
+    int i = n.hashCode() & mask;	// same hash as above (names are ASCII)
+    while (names[i] != null)
+      i = (i + 1) & mask;
+    names[i] = n;
+  }
+
+  ParseException error(int at, String msg) {
+    return new ParseException(msg + "line " + line + ", column " + (at - lineStart + 1) + ".");
+  }
+
+  ParseException expected(String what) {
+    String found = kind == EOF ? "<EOF>" : kind == EOL ? "\"\\n\"" : "\"" + text() + "\"";
+    return error(start, "Encountered " + found + " when expecting " + what + " at ");
+  }
+
+  void expect(int k) throws ParseException {
+    if (kind != k)
+      throw expected(tokenImage[k]);
+    next();
+  }
+
+  //-----------------------------------------------------------------
+  // Parser
+  //-----------------------------------------------------------------
+  //
+
+  // Program -> {Func | "\n"} <EOF>
+  //
+  public IR1.Program program() throws ParseException {
+    return new IR1.Program(funcs());
+  }
+
+  List<IR1.Func> funcs() throws ParseException {
+    List<IR1.Func> fs = new ArrayList<IR1.Func>();
+    next();
+    while (kind != EOF) {
+      if (kind == EOL)
+	next();
+      else
+	fs.add(func());
+    }
+    return fs;
+  }
+
+  // Func -> <Global> VarList "\n" [VarList "\n"] "{" {Inst | "\n"} "}"
+  //
+  IR1.Func func() throws ParseException {
+    if (kind != Global)
+      throw expected("<Global>");
+    String name = name(start + 1, stop);
+    next();
+    List<String> params = varList();
+    expect(EOL);
+    List<String> locals = new ArrayList<String>();
+    if (kind == LPAREN) {
+      locals = varList();
+      expect(EOL);
+    }
+    try {
+      syms = new Symbols(params.toArray(new String[0]), locals.toArray(new String[0]));
+    } catch (IllegalArgumentException e) {
+      throw error(start, e.getMessage() + " at ");
+    }
+    expect(LBRACE);
+    int n = 0;
+    while (kind != RBRACE) {
+      if (kind == EOL) {
+	next();
+      } else {
+	if (n == insts.length)
+	  insts = Arrays.copyOf(insts, 2 * n);
+	insts[n] = inst(n);
+	n++;
+      }
+    }
+    next();
+    return syms.func(name, params.toArray(new String[0]),
+		     locals.toArray(new String[0]), Arrays.copyOf(insts, n));
+  }
+
+  // VarList -> "(" [<Id> {"," <Id>}] ")"
+  //
+  List<String> varList() throws ParseException {
+    List<String> vars = new ArrayList<String>();
+    expect(LPAREN);
+    if (kind != RPAREN) {
+      vars.add(id());
+      while (kind == COMMA) {
+	next();
+	vars.add(id());
+      }
+    }
+    expect(RPAREN);
+    return vars;
+  }
+
+  String id() throws ParseException {
+    if (kind != Id)
+      throw expected("<Id>");
+    String s = text();
+    next();
+    return s;
+  }
+
+  // Inst -> ... <EOL>  (see above); i is its index in the code
+  //
+  IR1.Inst inst(int i) throws ParseException {
+    IR1.Inst inst;
+    switch (kind) {
+    case Id: case Temp: {
+      boolean isId = kind == Id;
+      String s = isId ? text() : null;
+      int num = ival;
+      next();
+      if (isId && kind == COLON) {
+	next();
+	syms.define(s, i);
+	inst = new IR1.LabelDec(s);
+      } else {
+	IR1.Dest dst = isId ? syms.id(s) : syms.temp(num);
+	expect(ASSIGN);
+	inst = rhs(dst);
+      }
+      break;
+    }
+    case IntLit: case LBRACK: {
+      IR1.Addr addr = addr();
+      expect(ASSIGN);
+      inst = new IR1.Store(addr, src());
+      break;
+    }
+    case CALL:
+      next();
+      inst = call(null);
+      break;
+    case RETURN:
+      next();
+      inst = kind == EOL ? new IR1.Return() : new IR1.Return(src());
+      break;
+    case IF: {
+      next();
+      IR1.Src src1 = src();
+      IR1.ROP rop = rop();
+      if (rop == null)
+	throw expected("a relational operator");
+      next();
+      IR1.Src src2 = src();
+      expect(GOTO);
+      inst = new IR1.CJump(rop, src1, src2, syms.label(id()));
+      break;
+    }
+    case GOTO:
+      next();
+      inst = new IR1.Jump(syms.label(id()));
+      break;
+    default:
+      throw expected("an instruction");
+    }
+    expect(EOL);
+    return inst;
+  }
+
+  // Rhs, after Dest "="
+  //
+  IR1.Inst rhs(IR1.Dest dst) throws ParseException {
+    switch (kind) {
+    case LBRACK:
+      return new IR1.Load(dst, addr());
+    case SUB: case NOT: {
+      IR1.UOP uop = kind == SUB ? IR1.UOP.NEG : IR1.UOP.NOT;
+      next();
+      return new IR1.Unop(uop, dst, src());
+    }
+    case CALL:
+      next();
+      return call(dst);
+    case IntLit: {
+      int v = ival;
+      next();
+      if (kind == LBRACK)
+	return new IR1.Load(dst, addr(v));
+      return binop(dst, new IR1.IntLit(v));
+    }
+    default:
+      return binop(dst, src());
+    }
+  }
+
+  IR1.Inst binop(IR1.Dest dst, IR1.Src src1) throws ParseException {
+    IR1.BOP bop = aop();
+    if (bop == null)
+      bop = rop();
+    if (bop == null)
+      return new IR1.Move(dst, src1);
+    next();
+    return new IR1.Binop(bop, dst, src1, src());
+  }
+
+  // After "call": <Global> ArgList
+  //
+  IR1.Inst call(IR1.Dest dst) throws ParseException {
+    if (kind != Global)
+      throw expected("<Global>");
+    String name = name(start + 1, stop);
+    next();
+    int n = 0;
+    expect(LPAREN);
+    if (kind != RPAREN) {
+      while (true) {
+	if (n == argBuf.length)
+	  argBuf = Arrays.copyOf(argBuf, 2 * n);
+	argBuf[n++] = src();
+	if (kind != COMMA)
+	  break;
+	next();
+      }
+    }
+    expect(RPAREN);
+    return new IR1.Call(name, Arrays.copyOf(argBuf, n), dst);
+  }
+
+  // Addr -> [IntLit] "[" Src "]"
+  //
+  IR1.Addr addr() throws ParseException {
+    int offset = 0;
+    if (kind == IntLit) {
+      offset = ival;
+      next();
+    }
+    return addr(offset);
+  }
+
+  IR1.Addr addr(int offset) throws ParseException {
+    expect(LBRACK);
+    IR1.Src base = src();
+    expect(RBRACK);
+    return new IR1.Addr(base, offset);
+  }
+
+  // Src -> Id | Temp | IntLit | BoolLit | StrLit
+  //
+  IR1.Src src() throws ParseException {
+    IR1.Src src;
+    switch (kind) {
+    case Id:      src = syms.id(text()); break;
+    case Temp:    src = syms.temp(ival); break;
+    case IntLit:  src = new IR1.IntLit(ival); break;
+    case BoolLit: src = new IR1.BoolLit(b[start] == 't'); break;
+    case StrLit:  src = new IR1.StrLit(new String(b, start + 1, stop - start - 2, UTF8)); break;
+    default:
+      throw expected("an operand");
+    }
+    next();
+    return src;
+  }
+
+  // Operators (the current token, if it is one; not consumed)
+  //
+  IR1.AOP aop() {
+    switch (kind) {
+    case ADD: return IR1.AOP.ADD;
+    case SUB: return IR1.AOP.SUB;
+    case MUL: return IR1.AOP.MUL;
+    case DIV: return IR1.AOP.DIV;
+    case AND: return IR1.AOP.AND;
+    case OR:  return IR1.AOP.OR;
+    default:  return null;
+    }
+  }
+
+  IR1.ROP rop() {
+    switch (kind) {
+    case EQ: return IR1.ROP.EQ;
+    case NE: return IR1.ROP.NE;
+    case LT: return IR1.ROP.LT;
+    case LE: return IR1.ROP.LE;
+    case GT: return IR1.ROP.GT;
+    case GE: return IR1.ROP.GE;
+    default: return null;
+    }
+  }
+
+  //-----------------------------------------------------------------
+  // Parallel parsing
+  //-----------------------------------------------------------------
+  //
+  // Functions are independent, and a function header is the only
+  // line that starts with a <Global> (in a body, globals only follow
+  // "call"), so the input can be split into functions by a quick
+  // line scan and each piece parsed on its own. Runs of pieces are
+  // parsed as one task, down to about TASK_MIN bytes; the funcs come
+  // back in input order, and the first (by position) error is
+  // reported.
+  //
+  static final int PARALLEL_MIN = 1 << 20;	// smaller files: sequential
+  static final int TASK_MIN = 1 << 14;
+  static ForkJoinPool pool;
+
+  static synchronized ForkJoinPool pool() {
+    if (pool == null)
+      pool = new ForkJoinPool();
+    return pool;
+  }
+
+  public static IR1.Program parseParallel(byte[] b, ForkJoinPool pool)
+    throws ParseException {
+    // piece i is [starts[i], starts[i+1]), and begins on line lines[i]
+    int[] starts = new int[64], lines = new int[64];
+    int n = 1, line = 1;
+    for (int p = 0; p < b.length; ) {
+      int q = p;
+      while (q < b.length && (b[q] == ' ' || b[q] == '\t'))
+	q++;
+      if (q < b.length && b[q] == '_' && p > 0) {
+	if (n == starts.length) {
+	  starts = Arrays.copyOf(starts, 2 * n);
+	  lines = Arrays.copyOf(lines, 2 * n);
+	}
+	starts[n] = p;
+	lines[n++] = line;
+      }
+      while (q < b.length && b[q] != '\n')
+	q++;
+      p = q + 1;
+      line++;
+    }
+    lines[0] = 1;
+    starts = Arrays.copyOf(starts, n + 1);
+    starts[n] = b.length;
+    Piece all = new Piece(b, starts, lines, 0, n, new IR1.Func[n][], new ParseException[n]);
+    pool.invoke(all);
+    for (ParseException e: all.errors)
+      if (e != null)
+	throw e;
+    List<IR1.Func> funcs = new ArrayList<IR1.Func>();
+    for (IR1.Func[] fs: all.funcs)
+      if (fs != null)
+	funcs.addAll(Arrays.asList(fs));
+    return new IR1.Program(funcs);
+  }
+
+  // Parse pieces [lo, hi), splitting the range while it's large
+  //
+  @SuppressWarnings("serial")
+  static class Piece extends RecursiveAction {
+    final byte[] b;
+    final int[] starts, lines;
+    final int lo, hi;
+    final IR1.Func[][] funcs;
+    final ParseException[] errors;
+
+    Piece(byte[] b, int[] starts, int[] lines, int lo, int hi,
+	  IR1.Func[][] funcs, ParseException[] errors) {
+      this.b = b; this.starts = starts; this.lines = lines;
+      this.lo = lo; this.hi = hi; this.funcs = funcs; this.errors = errors;
+    }
+
+    protected void compute() {
+      if (hi - lo > 1 && starts[hi] - starts[lo] > TASK_MIN) {
+	int mid = (lo + hi) >>> 1;
+	invokeAll(new Piece(b, starts, lines, lo, mid, funcs, errors),
+		  new Piece(b, starts, lines, mid, hi, funcs, errors));
+	return;
+      }
+      Parser p = new Parser(b, starts[lo], starts[hi]);
+      p.line = lines[lo];
+      p.lineStart = starts[lo];
+      try {
+	funcs[lo] = p.funcs().toArray(new IR1.Func[0]);
+      } catch (ParseException e) {
+	errors[lo] = e;
+      }
+    }
+  }
+
+  // Usage: java ir1.Parser [-bench] <file>.ir
+  // Prints the parsed program; with -bench, compares parse
+  // throughput with ir1Parser's (and parallel parsing's) instead.
+  //
+  public static void main(String[] args) throws Exception {
+    if (args.length == 1) {
+      System.out.print(parse(args[0]));
+    } else if (args.length == 2 && args[0].equals("-bench")) {
+      RandomAccessFile f = new RandomAccessFile(args[1], "r");
+      byte[] a = new byte[(int) f.length()];
+      f.readFully(a);
+      f.close();
+      boolean ready = false;
+      for (int round = 0; round < 10; round++) {
+	long t0 = System.nanoTime();
+	InputStream in = new ByteArrayInputStream(a);
+	if (ready)
+	  ir1Parser.ReInit(in);
+	else
+	  new ir1Parser(in);
+	ready = true;
+	ir1Parser.Program();
+	long t1 = System.nanoTime();
+	new Parser(a).program();
+	long t2 = System.nanoTime();
+	parseParallel(a, pool());
+	long t3 = System.nanoTime();
+	System.out.printf("ir1Parser %7.1f MB/s, Parser %7.1f MB/s (%.1fx), parallel %7.1f MB/s%n",
+			  a.length * 1e3 / (t1 - t0), a.length * 1e3 / (t2 - t1),
+			  (double) (t1 - t0) / (t2 - t1), a.length * 1e3 / (t3 - t2));
+      }
+    } else {
+      System.out.println("Usage: java ir1.Parser [-bench] <file>.ir");
+    }
+  }
+
+}
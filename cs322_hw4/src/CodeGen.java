@@ -17,9 +17,12 @@ class CodeGen {
 
   public static void main(String [] args) throws Exception {
     if (args.length == 1) {
-      FileInputStream stream = new FileInputStream(args[0]);
-      IR1.Program p = new ir1Parser(stream).Program();
-      stream.close();
+      IR1.Program p;
+      if (IR1Binary.isBinary(args[0])) {
+	p = IR1Binary.Reader.map(args[0]).program();
+      } else {
+	p = Parser.parse(args[0]);
+      }
       gen(p);
     } else {
       System.out.println("You must provide an input file name.");
@@ -40,6 +43,7 @@ class CodeGen {
   // Per-function globals
   //
   static Map<IR1.Dest,X86.Reg> regMap; 	    // register mapping 
+  static Map<IR1.Dest,Integer> spillMap;    // stack slot of spilled Ids/Temps
   static int frameSize; 		    // in bytes
   static String fnName; 		    // function's name
   
@@ -80,8 +84,9 @@ class CodeGen {
   // - call reg-alloc routine to assign registers to all Ids and Temps
   // - emit the function header
   // - save any callee-save registers on the stack
-  // - make space for the local frame --- use the following calculation:
-  //    "if ((calleeSaveSize % 16) == 0) 
+  // - make space for the local frame (8 bytes per spill slot, at the
+  //   bottom) --- use the following calculation:
+  //    "if (((calleeSaveSize + frameSize) % 16) == 0) 
   //	  frameSize += 8;"
   //   where 'calleeSaveSize' represents the total size (in bytes) of
   //   all saved callee-registers
@@ -97,12 +102,18 @@ class CodeGen {
     fnName = n.name;
     System.out.print("\t\t\t  # " + n.header());
 
-    regMap = RegAlloc.linearScan(n);
+    spillMap = new HashMap<IR1.Dest,Integer>();
+    regMap = RegAlloc.linearScan(n, spillMap);
     
     for (Map.Entry<IR1.Dest,X86.Reg> me: regMap.entrySet()) 
       System.out.print("\t\t\t  # " + me.getKey() + "\t" + me.getValue() + "\n");
+    int slots = 0;
+    for (Map.Entry<IR1.Dest,Integer> me: spillMap.entrySet()) {
+      System.out.print("\t\t\t  # " + me.getKey() + "\t" + spillSlot(me.getKey()) + "\n");
+      slots = Math.max(slots, me.getValue() + 1);
+    }
 
-    frameSize = 0;
+    frameSize = 8 * slots;
     
     X86.emit0(".p2align 4, 0x90");
     X86.emit0(".globl _" + fnName);
@@ -119,20 +130,12 @@ class CodeGen {
     		srcRegs.add(reg);
 		}
     }
-    List<X86.Reg> tempList = new ArrayList<X86.Reg>(srcRegs);
-    
-    if (tempList.size() > 0) {
-    	tempList.remove((tempList.size() - 1));
-    }
-    
-    Collections.reverse(tempList);
-    
-    if ((calleeSaveSize % 16) == 0) {
+    if (((calleeSaveSize + frameSize) % 16) == 0) {
     	frameSize += 8;
     }	
     
     if (frameSize > 0) {
-    	X86.emit2("subq", new X86.Imm(8), X86.RSP);
+    	X86.emit2("subq", new X86.Imm(frameSize), X86.RSP);
     }
     
     X86.Reg[] regs = new X86.Reg[] {};
@@ -140,16 +143,23 @@ class CodeGen {
     	if (n.params.length > 6) {
         	throw new GenException("There are more than 6 args!");
         } else {
-        	X86.parallelMove(tempList.size(), X86.argRegs, tempList.toArray(regs), X86.R10); // register movings for call?
+        	// move each live param from its arg reg to its assigned reg
+        	// (spilled ones first, before any arg reg is overwritten)
+        	List<X86.Reg> argSrcs = new ArrayList<X86.Reg>();
+        	List<X86.Reg> argDsts = new ArrayList<X86.Reg>();
+        	for (int i = 0; i < n.params.length; i++)
+        		gen_spill(n.syms[i], X86.argRegs[i]);
+        	for (int i = 0; i < n.params.length; i++) {
+        		X86.Reg reg = regMap.get(n.syms[i]);
+        		if (reg != null) {
+        			argSrcs.add(X86.argRegs[i]);
+        			argDsts.add(reg);
+        		}
+        	}
+        	X86.parallelMove(argSrcs.size(), argSrcs.toArray(regs), argDsts.toArray(regs), tempReg1);
         }
     }
     
-    if (n.params.length == 1 && n.code.length == 1
-		&& n.code[0] instanceof IR1.Return
-		&& ((IR1.Return)(n.code[0])).val != null) {
-    	X86.emitMov(X86.Size.Q, X86.RDI, X86.RAX);
-    }
-    
     for (IR1.Inst inst : n.code) {
     	gen(inst);
     }
@@ -173,8 +183,10 @@ class CodeGen {
   }
 
   // For Binop, Unop, Move, and Load nodes:
-  // - If dst is not assigned a register, it means that the
-  //   instruction is dead; just return
+  // - If dst is neither assigned a register nor spilled, it means
+  //   that the instruction is dead; just return
+  // - A spilled dst is computed in a tempReg (see dest_reg()), then
+  //   stored to its stack slot (see gen_spill())
   //
 
   // Binop ---
@@ -209,9 +221,11 @@ class CodeGen {
   static void gen(IR1.Binop n) throws Exception {
       
 	  if (n.op instanceof IR1.ROP) {
+		  X86.Reg reg = dest_reg(n.dst, X86.R10);
+		  if (reg == null)
+			  return;
 		  X86.Operand left = gen_source(n.src1, X86.R10);
 		  X86.Operand right = gen_source(n.src2, X86.R11);
-		  X86.Reg reg = regMap.get(n.dst);
 		  
 		  X86.emit2("cmpq", right, left);
 		  String inst = "";
@@ -233,11 +247,12 @@ class CodeGen {
 		  }
 		  
 		  X86.emit0(inst + X86.regName[X86.Size.B.ordinal()][reg.r]);
-		  X86.emit0("movzbq " + X86.regName[X86.Size.B.ordinal()][reg.r] + "," + regMap.get(n.dst));
+		  X86.emit0("movzbq " + X86.regName[X86.Size.B.ordinal()][reg.r] + "," + reg);
+		  gen_spill(n.dst, reg);
 	
 	  } else if (n.op instanceof IR1.AOP) {
 		  if (n.op != IR1.AOP.DIV) {
-			  X86.Reg reg = regMap.get(n.dst);
+			  X86.Reg reg = dest_reg(n.dst, X86.R11);
 			  X86.Operand right = gen_source(n.src2, X86.R10);
 			  if (right == reg) {
 				  X86.emitMov(X86.Size.Q, right, X86.R10);
@@ -248,20 +263,26 @@ class CodeGen {
 			  if (reg != null) {
 				  X86.emitMov(X86.Size.Q, left, reg);
 				  X86.emit2(opname((IR1.AOP)(n.op)) + "q", right, reg);
-				  regMap.put(n.dst, reg);
+				  gen_spill(n.dst, reg);
 			  }
 		  } else {
-			  X86.Reg reg = regMap.get(n.dst);
-			  X86.Operand right = gen_source(n.src2, X86.R10);
-			  X86.Operand left = gen_source(n.src1, reg);
-			  
-			  if (right == reg) {
-				  X86.emitMov(X86.Size.Q, right, left);
+			  // no caller-save reg is live across a DIV, so RAX and
+			  // RDX are free here, except for this DIV's own operands
+			  X86.Reg reg = dest_reg(n.dst, X86.RAX);
+			  X86.Reg right = gen_source(n.src2, X86.R10);
+			  if (right == X86.RAX || right == X86.RDX) {
+				  X86.emitMov(X86.Size.Q, right, X86.R10);
 				  right = X86.R10;
 			  }
+			  X86.Reg left = gen_source(n.src1, X86.RAX);
+			  X86.emitMov(X86.Size.Q, left, X86.RAX);
 			  
 			  X86.emit0("cqto");
 			  X86.emit1("idivq", right);
+			  if (reg != null) {
+				  X86.emitMov(X86.Size.Q, X86.RAX, reg);
+				  gen_spill(n.dst, reg);
+			  }
 		  }
 	  }
   }	
@@ -277,15 +298,19 @@ class CodeGen {
   // - generate code for the op
   //  
   static void gen(IR1.Unop n) throws Exception {
+	  X86.Reg reg = dest_reg(n.dst, X86.R10);
+	  if (reg == null)
+		  return;
 	  X86.Operand src = gen_source(n.src, X86.R10);
-	  X86.emitMov(X86.Size.Q, src, regMap.get(n.dst));
+	  X86.emitMov(X86.Size.Q, src, reg);
 	  if (n.op == IR1.UOP.NEG) {
-		  X86.emit1("negq", regMap.get(n.dst));
+		  X86.emit1("negq", reg);
 	  } else if (n.op == IR1.UOP.NOT) {
-		  X86.emit1("notq", regMap.get(n.dst));
+		  X86.emit1("notq", reg);
 	  } else {
 		  throw new GenException("UOP: Unkown uop operator!");
 	  }
+	  gen_spill(n.dst, reg);
   }
 
   // Move ---
@@ -297,9 +322,11 @@ class CodeGen {
   // - generate a "mov"
   //  
   static void gen(IR1.Move n) throws Exception {
-	  if (regMap.containsKey(n.dst)) {
-		  X86.Reg src = gen_source(n.src, regMap.get(n.dst));
-		  X86.emitMov(X86.Size.Q, src, regMap.get(n.dst));
+	  X86.Reg reg = dest_reg(n.dst, X86.R10);
+	  if (reg != null) {
+		  X86.Reg src = gen_source(n.src, reg);
+		  X86.emitMov(X86.Size.Q, src, reg);
+		  gen_spill(n.dst, reg);
 	  }
   }
 
@@ -314,10 +341,11 @@ class CodeGen {
   //     are integers)
   //
   static void gen(IR1.Load n) throws Exception {
-	  if (regMap.containsKey(n.dst)) {
-		  X86.Reg reg = regMap.get((IR1.Dest)(n.dst));
+	  X86.Reg reg = dest_reg(n.dst, X86.R10);
+	  if (reg != null) {
 		  X86.Operand operand = gen_addr(n.addr, reg);
 		  X86.emit2("movslq", operand, reg);
+		  gen_spill(n.dst, reg);
 	  }
   }
 
@@ -333,16 +361,11 @@ class CodeGen {
   //     are all integers)
   //
   static void gen(IR1.Store n) throws Exception {
-      if (n.src instanceof IR1.Id || n.src instanceof IR1.Temp) {
-		  X86.Reg reg = gen_source(n.src, regMap.get(n.src));
-		  X86.Operand operand = gen_addr(n.addr, reg);
-		  X86.emit0("movl " + X86.regName[X86.Size.L.ordinal()][reg.r] + "," + operand);
-	  } else if (n.src instanceof IR1.IntLit) {
+      if (n.src instanceof IR1.Id || n.src instanceof IR1.Temp
+	  || n.src instanceof IR1.IntLit || n.src instanceof IR1.BoolLit) {
 		  X86.Reg reg = gen_source(n.src, X86.R10);
-		  X86.Operand operand = gen_addr(n.addr, X86.R10);
-		  X86.emit0("movl " + reg + "d," + operand);
-	  } else if (n.src instanceof IR1.BoolLit) {
-		  X86.Imm boolLit = new X86.Imm(((IR1.BoolLit)(n.src)).b ? 1 : 0);
+		  X86.Operand operand = gen_addr(n.addr, X86.R11);
+		  X86.emit0("movl " + X86.regName[X86.Size.L.ordinal()][reg.r] + "," + operand);
 	  } else {
 		  throw new GenException("Store: Unkown source type!");
 	  }
@@ -420,7 +443,11 @@ class CodeGen {
     X86.emit0("call _" + n.name);
     
     if (n.rdst != null) {
-    	X86.emitMov(X86.Size.Q, X86.RAX, regMap.get(n.rdst));
+    	X86.Reg reg = dest_reg(n.rdst, X86.RAX);
+    	if (reg != null) {
+    		X86.emitMov(X86.Size.Q, X86.RAX, reg);
+    		gen_spill(n.rdst, reg);
+    	}
     }
   }
 
@@ -438,7 +465,7 @@ class CodeGen {
 		  if (n.val instanceof IR1.IntLit) {
 			  X86.emitMov(X86.Size.Q, new X86.Imm(((IR1.IntLit)(n.val)).i), X86.RAX);
 		  } else {
-			  X86.Reg regToMove = regMap.get(n.val);
+			  X86.Reg regToMove = gen_source(n.val, X86.RAX);
 			  X86.emitMov(regToMove.s, regToMove, X86.RAX);
 		  }
 	  }
@@ -474,6 +501,10 @@ class CodeGen {
   //
   static X86.Reg gen_source(IR1.Src n, final X86.Reg temp) throws Exception {
 	  if (n instanceof IR1.Id || n instanceof IR1.Temp) {
+		  if (spillMap.containsKey((IR1.Dest)n)) {
+			  X86.emitMov(X86.Size.Q, spillSlot((IR1.Dest)n), temp);
+			  return temp;
+		  }
 		  return regMap.get((IR1.Dest)n);
 	  } else if (n instanceof IR1.IntLit) {
 		  X86.emitMov(X86.Size.Q, new X86.Imm(((IR1.IntLit)n).i), temp);
@@ -509,6 +540,27 @@ class CodeGen {
   // Ultilities
   //------------
 
+  // Spilled Ids and Temps
+  // - spillSlot() is the stack slot of a spilled Id or Temp
+  // - dest_reg() is the register to compute a dst in: its own, or
+  //   the given tempReg if it is spilled (null if it is dead)
+  // - gen_spill() stores a spilled dst from that register
+  //
+  static X86.Mem spillSlot(IR1.Dest d) {
+    return new X86.Mem(X86.RSP, 8 * spillMap.get(d));
+  }
+
+  static X86.Reg dest_reg(IR1.Dest d, X86.Reg temp) {
+    if (spillMap.containsKey(d))
+      return temp;
+    return regMap.get(d);
+  }
+
+  static void gen_spill(IR1.Dest d, X86.Reg reg) {
+    if (spillMap.containsKey(d))
+      X86.emitMov(X86.Size.Q, reg, spillSlot(d));
+  }
+
   static String opname(IR1.AOP op) {
     switch(op) {
     case ADD: return "add";
@@ -0,0 +1,63 @@
+//
+// Runtime support for IR1 programs compiled to JVM bytecode by
+// JvmGen. Plays the role lib.c plays for the X86 code.
+//
+// All IR1 values are JVM ints: bools are 0/1, and a string is its
+// index in the program's string table. The heap is an int array
+// addressed in bytes, so addresses must be 4-byte aligned.
+//
+
+public class IR1Runtime {
+  public static String[] strings;	// set by the program's main
+
+  static int[] heap = new int[1024];
+  static int top = 8;			// in bytes; address 0 stays unused
+
+  public static int malloc(int size) {
+    if (size < 0)
+      throw new RuntimeException("Negative malloc size: " + size);
+    int loc = top;
+    long end = ((long) top + size + 7) & ~7L;
+    if (end > (long) Integer.MAX_VALUE)
+      throw new RuntimeException("Out of heap memory");
+    if (end / 4 > heap.length) {
+      long cap = heap.length;
+      while (cap < end / 4)
+	cap *= 2;
+      heap = java.util.Arrays.copyOf(heap, (int) Math.min(cap, Integer.MAX_VALUE / 4));
+    }
+    top = (int) end;
+    return loc;
+  }
+
+  public static int load(int addr) {
+    return heap[index(addr)];
+  }
+
+  public static void store(int addr, int val) {
+    heap[index(addr)] = val;
+  }
+
+  static int index(int addr) {
+    if ((addr & 3) != 0 || addr < 8 || addr >= top)
+      throw new RuntimeException("Bad memory address: " + addr);
+    return addr >> 2;
+  }
+
+  public static void printInt(int x) {
+    System.out.println(x);
+  }
+
+  public static void printBool(int x) {
+    System.out.println(x != 0);
+  }
+
+  public static void printStr(int s) {
+    System.out.println(strings[s]);
+  }
+
+  public static void printStr() {
+    System.out.println();
+  }
+
+}
@@ -0,0 +1,603 @@
+//
+// JVM bytecode generator for IR1.
+//
+// Compiles an IR1 program into a single class, one static method per
+// IR1.Func, so that HotSpot can JIT-compile IR1 programs directly.
+// The class is either loaded and run in-process, or written, together
+// with IR1Runtime, into a runnable .jar.
+//
+// - every IR1 value is a JVM int (see IR1Runtime); every method
+//   takes int params and returns an int (0 if it has no value)
+// - params, locals and temps map to JVM locals
+// - labels map to branch targets
+// - malloc/Load/Store and the print builtins call IR1Runtime
+//
+// The class file is version 49, which the JVM verifies by type
+// inference, so no StackMapTable frames need to be generated.
+//
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+import ir1.*;
+
+class JvmGen {
+  static class GenException extends Exception {
+    public GenException(String msg) { super(msg); }
+  }
+
+  static final String CLASS_NAME = "IR1Program";
+  static final String RUNTIME = "IR1Runtime";
+
+  // Usage: JvmGen [-jar <out>.jar] <file>.ir
+  //
+  public static void main(String [] args) throws Exception {
+    if (args.length == 1 || (args.length == 3 && args[0].equals("-jar"))) {
+      String file = args[args.length-1];
+      IR1.Program p;
+      if (IR1Binary.isBinary(file)) {
+	p = IR1Binary.Reader.map(file).program();
+      } else {
+	p = Parser.parse(file);
+      }
+      byte[] bytes = gen(p, CLASS_NAME);
+      if (args.length == 3)
+	writeJar(args[1], bytes);
+      else
+	run(bytes);
+    } else {
+      System.out.println("Usage: JvmGen [-jar <out>.jar] <file>.ir");
+    }
+  }
+
+  // Load the generated class and call its main method
+  //
+  static void run(final byte[] bytes) throws Exception {
+    ClassLoader loader = new ClassLoader(JvmGen.class.getClassLoader()) {
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+	if (!name.equals(CLASS_NAME))
+	  throw new ClassNotFoundException(name);
+	return defineClass(name, bytes, 0, bytes.length);
+      }
+    };
+    Class<?> c = loader.loadClass(CLASS_NAME);
+    try {
+      c.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+    } catch (java.lang.reflect.InvocationTargetException e) {
+      throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+    }
+  }
+
+  // Write a runnable jar holding the program and the runtime
+  //
+  static void writeJar(String name, byte[] bytes) throws Exception {
+    Manifest mf = new Manifest();
+    mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    mf.getMainAttributes().put(Attributes.Name.MAIN_CLASS, CLASS_NAME);
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(name), mf);
+    out.putNextEntry(new JarEntry(CLASS_NAME + ".class"));
+    out.write(bytes);
+    out.closeEntry();
+    InputStream rt = JvmGen.class.getResourceAsStream("/" + RUNTIME + ".class");
+    if (rt == null)
+      throw new GenException("Can't find " + RUNTIME + ".class");
+    out.putNextEntry(new JarEntry(RUNTIME + ".class"));
+    byte[] buf = new byte[4096];
+    for (int n; (n = rt.read(buf)) > 0; )
+      out.write(buf, 0, n);
+    rt.close();
+    out.closeEntry();
+    out.close();
+  }
+
+  //----------------------------------------------------------------------------------
+  // Global Variables
+  //------------------
+
+  // Per-program globals
+  //
+  static String className;		    // of the class generated
+  static ConstPool cp;
+  static Map<String,IR1.Func> funcMap;
+  static List<String> stringLiterals;	    // indexed by position
+
+  // Per-function globals
+  //
+  static Map<String,Integer> labelMap;	    // label -> code offset
+  static List<int[]> fixups;		    // {branch offset, patch pos}, label
+  static List<String> fixupLabels;
+  static Code code;
+  static int maxStack;
+
+  //----------------------------------------------------------------------------------
+  // Class File Generation
+  //-----------------------
+
+  // Program ---
+  // Func[] funcs;
+  //
+  static byte[] gen(IR1.Program n, String name) throws Exception {
+    className = name;
+    cp = new ConstPool();
+    funcMap = new HashMap<String,IR1.Func>();
+    stringLiterals = new ArrayList<String>();
+    for (IR1.Func f: n.funcs)
+      funcMap.put(f.name, f);
+    if (!funcMap.containsKey("main"))
+      throw new GenException("Function main not defined!");
+
+    int thisClass = cp.cls(className);
+    int superClass = cp.cls("java/lang/Object");
+    List<byte[]> methods = new ArrayList<byte[]>();
+    for (IR1.Func f: n.funcs)
+      methods.add(gen(f));
+    methods.add(genMain());
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);			// minor version
+    out.writeShort(49);			// major version
+    cp.write(out);
+    out.writeShort(0x0021);		// ACC_PUBLIC | ACC_SUPER
+    out.writeShort(thisClass);
+    out.writeShort(superClass);
+    out.writeShort(0);			// interfaces
+    out.writeShort(0);			// fields
+    out.writeShort(methods.size());
+    for (byte[] m: methods)
+      out.write(m);
+    out.writeShort(0);			// attributes
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  // The JVM entry point: install the string table, then call _main
+  //
+  static byte[] genMain() throws Exception {
+    code = new Code();
+    maxStack = 4;
+    emitInt(stringLiterals.size());
+    code.op(0xbd);			// anewarray
+    code.u2(cp.cls("java/lang/String"));
+    for (int i = 0; i < stringLiterals.size(); i++) {
+      code.op(0x59);			// dup
+      emitInt(i);
+      emitLdc(cp.string(stringLiterals.get(i)));
+      code.op(0x53);			// aastore
+    }
+    code.op(0xb3);			// putstatic
+    code.u2(cp.fieldref(RUNTIME, "strings", "[Ljava/lang/String;"));
+    code.op(0xb8);			// invokestatic
+    code.u2(cp.methodref(className, "_main", "()I"));
+    code.op(0x57);			// pop
+    code.op(0xb1);			// return
+    return method("main", "([Ljava/lang/String;)V", 1);
+  }
+
+  // Func ---
+  // String name;
+  // Var[] params;
+  // Var[] locals;
+  // Inst[] code;
+  //
+  // Guideline:
+  // - each Id/Temp's JVM local is its slot (params first, see Symbols)
+  // - all non-param locals are zeroed on entry, so the verifier
+  //   accepts reads that IR1 leaves undefined
+  // - a trailing "return 0" covers falling off the end
+  //
+  static byte[] gen(IR1.Func n) throws Exception {
+    code = new Code();
+    maxStack = 4;
+    labelMap = new HashMap<String,Integer>();
+    fixups = new ArrayList<int[]>();
+    fixupLabels = new ArrayList<String>();
+
+    for (int i = n.params.length; i < n.syms.length; i++) {
+      code.op(0x03);			// iconst_0
+      emitStore(i);
+    }
+
+    for (IR1.Inst inst: n.code)
+      gen(inst);
+    code.op(0x03);			// iconst_0
+    code.op(0xac);			// ireturn
+
+    for (int i = 0; i < fixups.size(); i++) {
+      Integer target = labelMap.get(fixupLabels.get(i));
+      if (target == null)
+	throw new GenException("Label " + fixupLabels.get(i) + " not defined!");
+      int[] fx = fixups.get(i);
+      int offset = target - fx[0];
+      if (offset != (short) offset)
+	throw new GenException("Function " + n.name + " is too large");
+      code.patch2(fx[1], offset);
+    }
+    return method("_" + n.name, descriptor(n.params.length),
+		  Math.max(n.syms.length, 1));
+  }
+
+  static int local(IR1.Dest d) {
+    return Symbols.slot(d);
+  }
+
+  static String descriptor(int nparams) {
+    String desc = "(";
+    for (int i = 0; i < nparams; i++)
+      desc += "I";
+    return desc + ")I";
+  }
+
+  // method_info with a Code attribute holding the current code
+  //
+  static byte[] method(String name, String desc, int maxLocals) throws Exception {
+    if (code.len > 65535)
+      throw new GenException("Method " + name + " is too large");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(0x0009);		// ACC_PUBLIC | ACC_STATIC
+    out.writeShort(cp.utf8(name));
+    out.writeShort(cp.utf8(desc));
+    out.writeShort(1);			// attributes
+    out.writeShort(cp.utf8("Code"));
+    out.writeInt(12 + code.len);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(code.len);
+    out.write(code.buf, 0, code.len);
+    out.writeShort(0);			// exception table
+    out.writeShort(0);			// attributes
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  // INSTRUCTIONS
+
+  static void gen(IR1.Inst n) throws Exception {
+    if (n instanceof IR1.Binop) 	gen((IR1.Binop) n);
+    else if (n instanceof IR1.Unop) 	gen((IR1.Unop) n);
+    else if (n instanceof IR1.Move) 	gen((IR1.Move) n);
+    else if (n instanceof IR1.Load) 	gen((IR1.Load) n);
+    else if (n instanceof IR1.Store) 	gen((IR1.Store) n);
+    else if (n instanceof IR1.LabelDec) gen((IR1.LabelDec) n);
+    else if (n instanceof IR1.CJump) 	gen((IR1.CJump) n);
+    else if (n instanceof IR1.Jump) 	gen((IR1.Jump) n);
+    else if (n instanceof IR1.Call)     gen((IR1.Call) n);
+    else if (n instanceof IR1.Return)   gen((IR1.Return) n);
+    else throw new GenException("Illegal IR1 instruction: " + n);
+  }
+
+  // Binop ---
+  //  BOP op;
+  //  Dest dst;
+  //  Src src1, src2;
+  //
+  // Relational ops produce 0/1 through a short branch:
+  //   if_icmp<op> +7; iconst_0; goto +4; iconst_1
+  //
+  static void gen(IR1.Binop n) throws Exception {
+    gen_source(n.src1);
+    gen_source(n.src2);
+    if (n.op instanceof IR1.ROP) {
+      code.op(cmpOpcode((IR1.ROP) n.op));
+      code.u2(7);
+      code.op(0x03);			// iconst_0
+      code.op(0xa7);			// goto
+      code.u2(4);
+      code.op(0x04);			// iconst_1
+    } else {
+      switch ((IR1.AOP) n.op) {
+      case ADD: code.op(0x60); break;	// iadd
+      case SUB: code.op(0x64); break;	// isub
+      case MUL: code.op(0x68); break;	// imul
+      case DIV: code.op(0x6c); break;	// idiv
+      case AND: code.op(0x7e); break;	// iand
+      case OR:  code.op(0x80); break;	// ior
+      }
+    }
+    emitStore(local(n.dst));
+  }
+
+  // Unop ---
+  //  UOP op;
+  //  Dest dst;
+  //  Src src;
+  //
+  static void gen(IR1.Unop n) throws Exception {
+    gen_source(n.src);
+    if (n.op == IR1.UOP.NEG) {
+      code.op(0x74);			// ineg
+    } else {
+      code.op(0x04);			// iconst_1
+      code.op(0x82);			// ixor
+    }
+    emitStore(local(n.dst));
+  }
+
+  // Move ---
+  //  Dest dst;
+  //  Src src;
+  //
+  static void gen(IR1.Move n) throws Exception {
+    gen_source(n.src);
+    emitStore(local(n.dst));
+  }
+
+  // Load ---
+  //  Dest dst;
+  //  Addr addr;
+  //
+  static void gen(IR1.Load n) throws Exception {
+    gen_addr(n.addr);
+    code.op(0xb8);			// invokestatic
+    code.u2(cp.methodref(RUNTIME, "load", "(I)I"));
+    emitStore(local(n.dst));
+  }
+
+  // Store ---
+  //  Addr addr;
+  //  Src src;
+  //
+  static void gen(IR1.Store n) throws Exception {
+    gen_addr(n.addr);
+    gen_source(n.src);
+    code.op(0xb8);			// invokestatic
+    code.u2(cp.methodref(RUNTIME, "store", "(II)V"));
+  }
+
+  // LabelDec ---
+  //  Label lab;
+  //
+  static void gen(IR1.LabelDec n) {
+    labelMap.put(n.lab.name, code.len);
+  }
+
+  // CJump ---
+  //  ROP op;
+  //  Src src1, src2;
+  //  Label lab;
+  //
+  static void gen(IR1.CJump n) throws Exception {
+    gen_source(n.src1);
+    gen_source(n.src2);
+    emitBranch(cmpOpcode(n.op), n.lab.name);
+  }
+
+  // Jump ---
+  //  Label lab;
+  //
+  static void gen(IR1.Jump n) throws Exception {
+    emitBranch(0xa7, n.lab.name);	// goto
+  }
+
+  // Call ---
+  //  String name;
+  //  Src[] args;
+  //  Dest rdst;
+  //
+  // Builtins become IR1Runtime calls; other calls invoke the callee's
+  // static method. Every method returns an int, which is stored in
+  // rdst or popped.
+  //
+  static void gen(IR1.Call n) throws Exception {
+    String owner, name, desc;
+    if (n.name.equals("printInt") || n.name.equals("printBool")) {
+      owner = RUNTIME; name = n.name; desc = "(I)V";
+    } else if (n.name.equals("printStr")) {
+      owner = RUNTIME; name = n.name; desc = n.args.length == 0 ? "()V" : "(I)V";
+    } else if (n.name.equals("malloc")) {
+      owner = RUNTIME; name = n.name; desc = "(I)I";
+    } else {
+      IR1.Func f = funcMap.get(n.name);
+      if (f == null)
+	throw new GenException("Function " + n.name + " not defined!");
+      if (f.params.length != n.args.length)
+	throw new GenException("Wrong number of args in call: " + n);
+      owner = className; name = "_" + n.name; desc = descriptor(n.args.length);
+    }
+    int nargs = desc.indexOf(')') - 1;
+    for (int i = 0; i < nargs; i++)
+      gen_source(n.args[i]);
+    maxStack = Math.max(maxStack, nargs + 1);
+    code.op(0xb8);			// invokestatic
+    code.u2(cp.methodref(owner, name, desc));
+    if (desc.endsWith("I")) {
+      if (n.rdst != null)
+	emitStore(local(n.rdst));
+      else
+	code.op(0x57);			// pop
+    }
+  }
+
+  // Return ---
+  //  Src val;
+  //
+  static void gen(IR1.Return n) throws Exception {
+    if (n.val != null)
+      gen_source(n.val);
+    else
+      code.op(0x03);			// iconst_0
+    code.op(0xac);			// ireturn
+  }
+
+  // OPERANDS
+
+  // Src -> Id | Temp | IntLit | BoolLit | StrLit
+  //
+  // Push the Src's value on the operand stack.
+  //
+  static void gen_source(IR1.Src n) throws Exception {
+    if (n instanceof IR1.Id || n instanceof IR1.Temp) {
+      emitLoad(local((IR1.Dest) n));
+    } else if (n instanceof IR1.IntLit) {
+      emitInt(((IR1.IntLit) n).i);
+    } else if (n instanceof IR1.BoolLit) {
+      emitInt(((IR1.BoolLit) n).b ? 1 : 0);
+    } else if (n instanceof IR1.StrLit) {
+      String s = ((IR1.StrLit) n).s;
+      int idx = stringLiterals.indexOf(s);
+      if (idx < 0) {
+	idx = stringLiterals.size();
+	stringLiterals.add(s);
+      }
+      emitInt(idx);
+    } else {
+      throw new GenException("Gen_Source: Unknown source!");
+    }
+  }
+
+  // Addr ---
+  // Src base;
+  // int offset;
+  //
+  static void gen_addr(IR1.Addr addr) throws Exception {
+    gen_source(addr.base);
+    if (addr.offset != 0) {
+      emitInt(addr.offset);
+      code.op(0x60);			// iadd
+    }
+  }
+
+  //----------------------------------------------------------------------------------
+  // Ultilities
+  //------------
+
+  static int cmpOpcode(IR1.ROP op) {
+    switch (op) {
+    case EQ: return 0x9f;		// if_icmpeq
+    case NE: return 0xa0;		// if_icmpne
+    case LT: return 0xa1;		// if_icmplt
+    case GE: return 0xa2;		// if_icmpge
+    case GT: return 0xa3;		// if_icmpgt
+    case LE: return 0xa4;		// if_icmple
+    }
+    return -1; // impossible
+  }
+
+  static void emitBranch(int opcode, String label) {
+    fixups.add(new int[] { code.len, code.len + 1 });
+    fixupLabels.add(label);
+    code.op(opcode);
+    code.u2(0);
+  }
+
+  static void emitInt(int i) {
+    if (i >= -1 && i <= 5) {
+      code.op(0x03 + i);		// iconst_<i>
+    } else if (i == (byte) i) {
+      code.op(0x10);			// bipush
+      code.u1(i);
+    } else if (i == (short) i) {
+      code.op(0x11);			// sipush
+      code.u2(i);
+    } else {
+      emitLdc(cp.integer(i));
+    }
+  }
+
+  static void emitLdc(int idx) {
+    if (idx < 256) {
+      code.op(0x12);			// ldc
+      code.u1(idx);
+    } else {
+      code.op(0x13);			// ldc_w
+      code.u2(idx);
+    }
+  }
+
+  static void emitLoad(int local) {
+    emitLocal(0x15, 0x1a, local);	// iload, iload_0
+  }
+
+  static void emitStore(int local) {
+    emitLocal(0x36, 0x3b, local);	// istore, istore_0
+  }
+
+  static void emitLocal(int op, int op0, int local) {
+    if (local <= 3) {
+      code.op(op0 + local);
+    } else if (local < 256) {
+      code.op(op);
+      code.u1(local);
+    } else {
+      code.op(0xc4);			// wide
+      code.op(op);
+      code.u2(local);
+    }
+  }
+
+  // A growable bytecode buffer
+  //
+  static class Code {
+    byte[] buf = new byte[256];
+    int len = 0;
+
+    void u1(int b) {
+      if (len == buf.length)
+	buf = Arrays.copyOf(buf, buf.length * 2);
+      buf[len++] = (byte) b;
+    }
+    void op(int b) { u1(b); }
+    void u2(int s) { u1(s >> 8); u1(s); }
+    void patch2(int pos, int s) {
+      buf[pos] = (byte) (s >> 8);
+      buf[pos+1] = (byte) s;
+    }
+  }
+
+  // The class file's constant pool
+  //
+  static class ConstPool {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    Map<String,Integer> index = new HashMap<String,Integer>();
+    int count = 1;
+
+    int add(String key, int tag, int a, int b, String s) {
+      Integer idx = index.get(key);
+      if (idx != null)
+	return idx;
+      try {
+	out.writeByte(tag);
+	if (s != null)
+	  out.writeUTF(s);
+	else if (tag == 3)
+	  out.writeInt(a);
+	else if (tag == 7 || tag == 8)
+	  out.writeShort(a);
+	else {
+	  out.writeShort(a);
+	  out.writeShort(b);
+	}
+      } catch (IOException e) {
+	throw new RuntimeException(e);
+      }
+      index.put(key, count);
+      return count++;
+    }
+
+    int utf8(String s)	      { return add("U" + s, 1, 0, 0, s); }
+    int integer(int i)	      { return add("I" + i, 3, i, 0, null); }
+    int cls(String name)      { return add("C" + name, 7, utf8(name), 0, null); }
+    int string(String s)      { return add("S" + s, 8, utf8(s), 0, null); }
+    int nameAndType(String name, String desc) {
+      return add("N" + name + ":" + desc, 12, utf8(name), utf8(desc), null);
+    }
+    int fieldref(String owner, String name, String desc) {
+      return add("F" + owner + "." + name + ":" + desc, 9, cls(owner),
+		 nameAndType(name, desc), null);
+    }
+    int methodref(String owner, String name, String desc) {
+      return add("M" + owner + "." + name + ":" + desc, 10, cls(owner),
+		 nameAndType(name, desc), null);
+    }
+
+    void write(DataOutputStream o) throws IOException {
+      out.flush();
+      o.writeShort(count);
+      o.write(bytes.toByteArray());
+    }
+  }
+
+}
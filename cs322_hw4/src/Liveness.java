@@ -12,26 +12,50 @@ import ir1.*;
 
 class Liveness {
 
-  // Utility class for describing sets of registers
-  static class RegSet extends HashSet<IR1.Dest> implements Iterable<IR1.Dest> {
-    void add_source(IR1.Src rand) {
-      if (rand instanceof IR1.Dest)
-	add((IR1.Dest)rand);
+  // Utility class for describing sets of registers: a bitset over
+  // the function's operand slots (see Symbols)
+  static class RegSet implements Iterable<IR1.Dest> {
+    final IR1.Dest[] syms;
+    final long[] bits;
+
+    RegSet(IR1.Dest[] syms) {
+      this.syms = syms;
+      bits = new long[(syms.length + 63) >>> 6];
     }
-    void add_dest(IR1.Dest rand) {
-      if (rand instanceof IR1.Dest)
-	add((IR1.Dest)rand);
+    void add(IR1.Dest rand) {
+      int s = Symbols.slot(rand);
+      bits[s >>> 6] |= 1L << s;
     }
-    void diff(RegSet os) {
-      removeAll(os);
+    boolean contains(IR1.Dest rand) {
+      int s = Symbols.slot(rand);
+      return (bits[s >>> 6] & (1L << s)) != 0;
     }
-    void union(RegSet os) {
-      addAll(os);
-    }	
-    RegSet copy() {
-      RegSet s = new RegSet();
-      s.addAll(this);
-      return s;
+    public Iterator<IR1.Dest> iterator() {
+      return new Iterator<IR1.Dest>() {
+	int next = nextSlot(0);
+	public boolean hasNext() { return next >= 0; }
+	public IR1.Dest next() {
+	  if (next < 0)
+	    throw new NoSuchElementException();
+	  IR1.Dest d = syms[next];
+	  next = nextSlot(next + 1);
+	  return d;
+	}
+	public void remove() { throw new UnsupportedOperationException(); }
+      };
+    }
+    // First slot >= from in the set, or -1
+    int nextSlot(int from) {
+      int w = from >>> 6;
+      if (w >= bits.length)
+	return -1;
+      long word = bits[w] & (-1L << from);
+      while (word == 0) {
+	if (++w == bits.length)
+	  return -1;
+	word = bits[w];
+      }
+      return (w << 6) + Long.numberOfTrailingZeros(word);
     }
     public String toString() {
       String r = "{ ";
@@ -42,6 +66,28 @@ class Liveness {
     }
   }
 
+  // Utility class for collecting the operands of one Inst, by slot
+  static class SlotList {
+    int[] slots = new int[4];
+    int n;
+
+    void add_source(IR1.Src rand) {
+      if (rand instanceof IR1.Dest)
+	add_dest((IR1.Dest)rand);
+    }
+    void add_dest(IR1.Dest rand) {
+      if (n == slots.length)
+	slots = Arrays.copyOf(slots, 2 * n);
+      slots[n++] = Symbols.slot(rand);
+    }
+    // The slots collected since the last take
+    int[] take() {
+      int[] a = Arrays.copyOf(slots, n);
+      n = 0;
+      return a;
+    }
+  }
+
   // Utility class for describing lists of integers
   // Mainly useful just for its specialized version of toString
   static class IndexList extends ArrayList<Integer> {
@@ -58,22 +104,17 @@ class Liveness {
   }
 
   // Calculate successor information for each instruction in a function
+  // (labels are pre-resolved to the index of their LabelDec)
   static IndexList[] calculateSuccessors (IR1.Func func) {
-    SortedMap<String,Integer> labelMap = new TreeMap<String,Integer>(); 
-    for (int i = 1; i <= func.code.length; i++) {
-      IR1.Inst c = func.code[i-1];
-      if (c instanceof IR1.LabelDec)
-	labelMap.put(((IR1.LabelDec) c).lab.name, i);
-    }
     IndexList[] allSuccs = new IndexList[func.code.length+1]; 
     for (int i = 1; i < func.code.length; i++) { // there's always a label at the end
       IR1.Inst inst = func.code[i-1];
       IndexList succs = new IndexList();
       if (inst instanceof IR1.CJump) {
-	succs.add(labelMap.get(((IR1.CJump) inst).lab.name));
+	succs.add(((IR1.CJump) inst).lab.target + 1);
 	succs.add(i+1);      // safe because there's always a label at the end
       } else if (inst instanceof IR1.Jump) 
-	succs.add(labelMap.get(((IR1.Jump) inst).lab.name));
+	succs.add(((IR1.Jump) inst).lab.target + 1);
       else
 	succs.add(i+1);      
       allSuccs[i] = succs;
@@ -83,58 +124,220 @@ class Liveness {
   }
 
 
-  // Calculate liveOut information for each instruction in a function
-  static RegSet[] calculateLiveness (IR1.Func func) {
+  // Utility class for describing the basic blocks of a function:
+  // block b holds Insts [start[b], start[b+1]) (numbered from 1, as
+  // in calculateSuccessors)
+  static class Blocks {
+    int count;
+    int[] start;
+    int[] blockOf;		// Inst -> its block
+    int[][] succs, preds;
+  }
+
+  // Split a function into basic blocks, and build their CFG
+  static Blocks calculateBlocks (IR1.Func func, IndexList[] allSuccs) {
+    int len = func.code.length;
+    // a block starts at the first Inst, at each jump target, and
+    // after each Inst that doesn't just fall through
+    boolean[] leader = new boolean[len+2];
+    leader[1] = true;
+    for (int i = 1; i <= len; i++) {
+      IndexList succs = allSuccs[i];
+      if (succs.size() == 1 && succs.get(0) == i+1)
+	continue;
+      for (int s: succs)
+	leader[s] = true;
+      leader[i+1] = true;
+    }
+    Blocks bl = new Blocks();
+    bl.start = new int[len+2];
+    bl.blockOf = new int[len+1];
+    for (int i = 1; i <= len; i++) {
+      if (leader[i])
+	bl.start[bl.count++] = i;
+      bl.blockOf[i] = bl.count - 1;
+    }
+    bl.start[bl.count] = len+1;
+    bl.start = Arrays.copyOf(bl.start, bl.count+1);
+
+    bl.succs = new int[bl.count][];
+    int[] npreds = new int[bl.count];
+    for (int b = 0; b < bl.count; b++) {
+      IndexList succs = allSuccs[bl.start[b+1]-1];
+      int[] bs = new int[succs.size()];
+      int n = 0;
+      for (int s: succs) {
+	int sb = bl.blockOf[s];
+	if (n == 0 || bs[0] != sb) {	// a CJump to the next Inst
+	  bs[n++] = sb;
+	  npreds[sb]++;
+	}
+      }
+      bl.succs[b] = Arrays.copyOf(bs, n);
+    }
+    bl.preds = new int[bl.count][];
+    for (int b = 0; b < bl.count; b++)
+      bl.preds[b] = new int[npreds[b]];
+    Arrays.fill(npreds, 0);
+    for (int b = 0; b < bl.count; b++)
+      for (int sb: bl.succs[b])
+	bl.preds[sb][npreds[sb]++] = b;
+    return bl;
+  }
+
+  // Reverse postorder of the reverse CFG, from the exit blocks (then
+  // from any blocks that can't reach one, e.g. in an endless loop):
+  // a block comes before its predecessors, back edges aside
+  static int[] reversePostorder (Blocks bl) {
+    int[] order = new int[bl.count];
+    int n = bl.count;
+    boolean[] seen = new boolean[bl.count];
+    int[] stack = new int[bl.count], next = new int[bl.count];
+    for (int pass = 0; pass < 2; pass++) {
+      for (int root = bl.count-1; root >= 0; root--) {
+	if (seen[root] || (pass == 0 && bl.succs[root].length > 0))
+	  continue;
+	// iterative DFS over preds; a block is done after all of them
+	int sp = 0;
+	stack[sp++] = root;
+	seen[root] = true;
+	next[root] = 0;
+	while (sp > 0) {
+	  int b = stack[sp-1];
+	  if (next[b] < bl.preds[b].length) {
+	    int p = bl.preds[b][next[b]++];
+	    if (!seen[p]) {
+	      seen[p] = true;
+	      next[p] = 0;
+	      stack[sp++] = p;
+	    }
+	  } else {
+	    order[--n] = b;
+	    sp--;
+	  }
+	}
+      }
+    }
+    return order;
+  }
+
+  // Utility class for describing liveness at block level: liveIn and
+  // liveOut of block b are the bitset words [b*words, (b+1)*words)
+  static class BlockLiveness {
+    IR1.Func func;
+    Blocks blocks;
+    int[][] used, defined;	// slots, for each Inst
+    int words;
+    long[] liveIn, liveOut;
+  }
+
+  // Solve the dataflow equations at block level:
+  // - each block is summarized by the operands it uses before
+  //   defining them, and the operands it defines
+  // - a worklist, seeded in reverse postorder of the reverse CFG,
+  //   revisits a block only when the liveIn of a successor changed
+  static BlockLiveness solve (IR1.Func func) {
     IndexList[] allSuccs = calculateSuccessors(func);
+    int len = func.code.length;
+    BlockLiveness lv = new BlockLiveness();
+    lv.func = func;
+    Blocks bl = lv.blocks = calculateBlocks(func, allSuccs);
+    int words = lv.words = (func.syms.length + 63) >>> 6;
     
-    // Calculate sets of operands used and defined by each Inst
-    final RegSet[] used = new RegSet[func.code.length+1];
-    final RegSet[] defined = new RegSet[func.code.length+1];
-    for (int i = 1; i <= func.code.length; i++) {  
-      used[i] = new RegSet();
-      defined[i] = new RegSet();
-    }
-    for (int i = 1; i <= func.code.length; i++) {
-      IR1.Inst inst = func.code[i-1];
-      final int i0 = i;
-      calculate(inst, used[i0], defined[i0]);
+    // Calculate slots of operands used and defined by each Inst
+    final int[][] used = lv.used = new int[len+1][];
+    final int[][] defined = lv.defined = new int[len+1][];
+    SlotList u = new SlotList(), d = new SlotList();
+    for (int k = 0; k < func.params.length; k++)
+      d.add_dest(func.syms[k]);
+    for (int i = 1; i <= len; i++) {
+      calculate(func.code[i-1], u, d);
+      used[i] = u.take();
+      defined[i] = d.take();
     }
-    for (String var : func.params)
-      defined[1].add(new IR1.Id(var));
 
-    // Now solve dataflow equations to calculate
-    // set of operands that are live out of each Inst
-    RegSet[] liveIn = new RegSet[func.code.length+1];
-    RegSet[] liveOut = new RegSet[func.code.length+1];
-    for (int i = 1; i <= func.code.length; i++) {
-      liveIn[i] = new RegSet();
-      liveOut[i] = new RegSet();
+    // Summarize each block, walking it backwards
+    long[] buse = new long[bl.count * words];
+    long[] bdef = new long[bl.count * words];
+    for (int b = 0; b < bl.count; b++) {
+      int o = b * words;
+      for (int i = bl.start[b+1]-1; i >= bl.start[b]; i--) {
+	for (int s: defined[i]) {
+	  buse[o + (s >>> 6)] &= ~(1L << s);
+	  bdef[o + (s >>> 6)] |= 1L << s;
+	}
+	for (int s: used[i])
+	  buse[o + (s >>> 6)] |= 1L << s;
+      }
     }
-    
-    boolean changed = true;
-    while (changed) {
-      changed = false;
-      for (int i = func.code.length; i > 0; i--) {
-	RegSet newLiveIn = liveOut[i].copy();
-	newLiveIn.diff(defined[i]);
-	newLiveIn.union(used[i]);
-	liveIn[i] = newLiveIn;
-	RegSet newLiveOut = new RegSet();
-	for (int n = 0; n < allSuccs[i].size(); n++) 
-	  newLiveOut.union(liveIn[allSuccs[i].get(n)]);
-	if (!liveOut[i].equals(newLiveOut)) {
-	  liveOut[i] = newLiveOut;
+
+    // Now solve dataflow equations to calculate
+    // set of operands that are live in and out of each block
+    long[] liveIn = lv.liveIn = new long[bl.count * words];
+    long[] liveOut = lv.liveOut = new long[bl.count * words];
+    int[] work = reversePostorder(bl);		// a circular queue
+    boolean[] queued = new boolean[bl.count];
+    Arrays.fill(queued, true);
+    int head = 0, size = bl.count;
+    while (size > 0) {
+      int b = work[head];
+      head = (head + 1) % work.length;
+      size--;
+      queued[b] = false;
+      int o = b * words;
+      boolean changed = false;
+      for (int w = 0; w < words; w++) {
+	// liveOut = union of successors' liveIn
+	long out = 0;
+	for (int sb: bl.succs[b])
+	  out |= liveIn[sb * words + w];
+	liveOut[o + w] = out;
+	// liveIn = used + (liveOut - defined)
+	long in = buse[o + w] | (out & ~bdef[o + w]);
+	if (in != liveIn[o + w]) {
+	  liveIn[o + w] = in;
 	  changed = true;
 	}
       }
+      if (changed)
+	for (int p: bl.preds[b])
+	  if (!queued[p]) {
+	    queued[p] = true;
+	    work[(head + size++) % work.length] = p;
+	  }
     }
-    liveOut[0] = liveIn[1];
+    return lv;
+  }
+
+  // Calculate liveOut information for each instruction in a function
+  // - liveness is solved for blocks (see solve()), then expanded to
+  //   their Insts in one backward walk of each block
+  // - live sets are bitsets over operand slots
+  static RegSet[] calculateLiveness (IR1.Func func) {
+    BlockLiveness lv = solve(func);
+    Blocks bl = lv.blocks;
+    int words = lv.words;
+    RegSet[] liveOut = new RegSet[func.code.length+1];
+    long[] live = new long[words];
+    for (int b = 0; b < bl.count; b++) {
+      System.arraycopy(lv.liveOut, b * words, live, 0, words);
+      for (int i = bl.start[b+1]-1; i >= bl.start[b]; i--) {
+	liveOut[i] = new RegSet(func.syms);
+	System.arraycopy(live, 0, liveOut[i].bits, 0, words);
+	for (int s: lv.defined[i])
+	  live[s >>> 6] &= ~(1L << s);
+	for (int s: lv.used[i])
+	  live[s >>> 6] |= 1L << s;
+      }
+    }
+    liveOut[0] = new RegSet(func.syms);
+    System.arraycopy(lv.liveIn, 0, liveOut[0].bits, 0, words);
     return liveOut;
   }
 
   // INSTRUCTIONS
 
-  static void calculate(IR1.Inst n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Inst n, SlotList used, SlotList defined) {
     if (n instanceof IR1.Binop)  	calculate((IR1.Binop) n, used, defined);
     else if (n instanceof IR1.Unop) 	calculate((IR1.Unop) n, used, defined);
     else if (n instanceof IR1.Move) 	calculate((IR1.Move) n, used, defined);
@@ -147,75 +350,241 @@ class Liveness {
     else if (n instanceof IR1.Return)   calculate((IR1.Return) n, used, defined);
   }
 
-  static void calculate(IR1.Binop n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Binop n, SlotList used, SlotList defined) {
     used.add_source(n.src1);
     used.add_source(n.src2);
     defined.add_dest(n.dst);
   }
 
-  static void calculate(IR1.Unop n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Unop n, SlotList used, SlotList defined) {
     used.add_source(n.src);
     defined.add_dest(n.dst);
   }
 
-  static void calculate(IR1.Move n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Move n, SlotList used, SlotList defined) {
     used.add_source(n.src);
     defined.add_dest(n.dst);
   }
 
-  static void calculate(IR1.Load n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Load n, SlotList used, SlotList defined) {
     used.add_source(n.addr.base);
     defined.add_dest(n.dst);
   }
 
-  static void calculate(IR1.Store n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Store n, SlotList used, SlotList defined) {
     used.add_source(n.src);
     used.add_source(n.addr.base);
   }
 
-  static void calculate(IR1.CJump n, RegSet used, RegSet defined) {
+  static void calculate(IR1.CJump n, SlotList used, SlotList defined) {
     used.add_source(n.src1);
     used.add_source(n.src2);
   }
 
-  static void calculate(IR1.Call n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Call n, SlotList used, SlotList defined) {
     for (IR1.Src a: n.args) 
       used.add_source(a);
     if (n.rdst != null)
       defined.add_dest(n.rdst);
   }
 
-  static void calculate(IR1.Return n, RegSet used, RegSet defined) {
+  static void calculate(IR1.Return n, SlotList used, SlotList defined) {
     if (n.val != null)
       used.add_source(n.val);
   }
 
-  static class Interval {
-    int start;
-    int end;
-    Interval (int start, int end) {
-      this.start = start; this.end = end;
+  // A live range with holes: the positions where an operand is live,
+  // as sorted, disjoint sub-ranges [from[k],to[k]], plus the positions
+  // of its uses and defs (in increasing order)
+  // - position i is just after Inst i (0 is the function's entry), so
+  //   an operand is live at i if it is in liveOut[i]
+  // - a dead def, of an operand that is live elsewhere, still takes
+  //   its register at that position
+  static class LiveRange {
+    final IR1.Dest dest;
+    int[] from = new int[2], to = new int[2];
+    int count;
+    int[] uses = new int[2], defs = new int[2];
+    int nuses, ndefs;
+
+    LiveRange(IR1.Dest dest) { this.dest = dest; }
+
+    int start() { return from[0]; }
+    int end()   { return to[count-1]; }
+
+    // Index of the first sub-range that ends at or after pos
+    int find(int pos) {
+      int lo = 0, hi = count;
+      while (lo < hi) {
+	int mid = (lo + hi) >>> 1;
+	if (to[mid] < pos)
+	  lo = mid + 1;
+	else
+	  hi = mid;
+      }
+      return lo;
+    }
+
+    boolean covers(int pos) {
+      int k = find(pos);
+      return k < count && from[k] <= pos;
+    }
+
+    boolean intersects(LiveRange o) {
+      int i = find(o.start()), j = o.find(start());
+      while (i < count && j < o.count) {
+	if (to[i] < o.from[j])
+	  i++;
+	else if (o.to[j] < from[i])
+	  j++;
+	else
+	  return true;
+      }
+      return false;
     }
+
     public String toString() {
-      return "[" + start + "," + end + "]";
-    }
-  }
-
-  // calculate live interval for each operand in function
-  static Map<IR1.Dest,Interval> calculateLiveIntervals(IR1.Func func) {
-    Map<IR1.Dest,Interval> liveIntervals = new HashMap<IR1.Dest,Interval>();  
-    RegSet liveOut[] = calculateLiveness(func);
-    for (int i = 0; i <= func.code.length; i++) {
-      for (IR1.Dest t: liveOut[i]) {
-	Interval n = liveIntervals.get(t);
-	if (n == null) {
-	  n = new Interval(i,i);
-	  liveIntervals.put(t,n);
-	} else
-	  n.end = i;
+      String r = "";
+      for (int k = 0; k < count; k++)
+	r += "[" + from[k] + "," + to[k] + "]";
+      return r;
+    }
+
+    // Builders; calculateLiveRanges() works backwards, so these
+    // prepend (reverse() puts everything in order at the end)
+    void addRange(int f, int t) {
+      if (count > 0 && from[count-1] <= t + 1) {	// adjacent
+	from[count-1] = Math.min(from[count-1], f);
+	return;
+      }
+      if (count == from.length) {
+	from = Arrays.copyOf(from, 2 * count);
+	to = Arrays.copyOf(to, 2 * count);
       }
+      from[count] = f;
+      to[count++] = t;
+    }
+    void addUse(int pos) {
+      if (nuses == uses.length)
+	uses = Arrays.copyOf(uses, 2 * nuses);
+      uses[nuses++] = pos;
     }
-    return liveIntervals;
+    void addDef(int pos) {
+      if (ndefs == defs.length)
+	defs = Arrays.copyOf(defs, 2 * ndefs);
+      defs[ndefs++] = pos;
+    }
+    void reverse() {
+      reverse(from, count);
+      reverse(to, count);
+      reverse(uses, nuses);
+      reverse(defs, ndefs);
+    }
+    static void reverse(int[] a, int n) {
+      for (int i = 0, j = n-1; i < j; i++, j--) {
+	int t = a[i]; a[i] = a[j]; a[j] = t;
+      }
+    }
+  }
+
+  // Calculate the live range of each operand in a function, straight
+  // from block-level liveness: walking each block backwards, a range
+  // opens at the block's end (if live out) or at a use, and closes at
+  // a def or at the block's start. Operands that are never live get
+  // no range. Ranges come back in slot order.
+  static List<LiveRange> calculateLiveRanges(IR1.Func func) {
+    BlockLiveness lv = solve(func);
+    Blocks bl = lv.blocks;
+    int words = lv.words;
+    LiveRange[] ranges = new LiveRange[func.syms.length];
+    for (int s = 0; s < ranges.length; s++)
+      ranges[s] = new LiveRange(func.syms[s]);
+    int[] open = new int[func.syms.length];	// end of the open range, or -1
+    Arrays.fill(open, -1);
+    int[] opened = new int[func.syms.length];	// slots opened in the block
+    boolean[] isOpened = new boolean[func.syms.length];
+    int nopened;
+    for (int b = bl.count-1; b >= 0; b--) {
+      int first = bl.start[b], last = bl.start[b+1]-1;
+      nopened = 0;
+      for (int w = 0; w < words; w++)
+	for (long bits = lv.liveOut[b * words + w]; bits != 0; bits &= bits - 1) {
+	  int s = (w << 6) + Long.numberOfTrailingZeros(bits);
+	  open[s] = last;
+	  isOpened[s] = true;
+	  opened[nopened++] = s;
+	}
+      for (int i = last; i >= first; i--) {
+	// (params are defined on entry, and so are live from position 0)
+	int[] defs = lv.defined[i];
+	for (int k = i == 1 ? func.params.length : 0; k < defs.length; k++) {
+	  int s = defs[k];
+	  ranges[s].addDef(i);
+	  if (open[s] >= 0) {
+	    ranges[s].addRange(i, open[s]);
+	    open[s] = -1;
+	  }
+	}
+	for (int s: lv.used[i]) {
+	  ranges[s].addUse(i);
+	  if (open[s] < 0) {
+	    open[s] = i-1;
+	    if (!isOpened[s]) {
+	      isOpened[s] = true;
+	      opened[nopened++] = s;
+	    }
+	  }
+	}
+      }
+      // the block's first position is its first Inst's; only the
+      // entry block also owns the position before it
+      int from = b == 0 ? first-1 : first;
+      for (int k = 0; k < nopened; k++) {
+	int s = opened[k];
+	if (open[s] >= from)
+	  ranges[s].addRange(from, open[s]);
+	open[s] = -1;
+	isOpened[s] = false;
+      }
+    }
+    List<LiveRange> live = new ArrayList<LiveRange>();
+    for (LiveRange r: ranges) {
+      if (r.count == 0)
+	continue;
+      r.reverse();
+      // dead defs take their position too
+      for (int k = 0; k < r.ndefs; k++)
+	if (!r.covers(r.defs[k]))
+	  addPosition(r, r.defs[k]);
+      live.add(r);
+    }
+    return live;
+  }
+
+  // Add a single position to a (finished) range
+  static void addPosition(LiveRange r, int pos) {
+    int k = r.find(pos), n = r.count;
+    if (n == r.from.length) {
+      r.from = Arrays.copyOf(r.from, 2 * n);
+      r.to = Arrays.copyOf(r.to, 2 * n);
+    }
+    System.arraycopy(r.from, k, r.from, k+1, n-k);
+    System.arraycopy(r.to, k, r.to, k+1, n-k);
+    r.from[k] = r.to[k] = pos;
+    r.count++;
+    mergeNext(r, k);
+    if (k > 0)
+      mergeNext(r, k-1);
+  }
+
+  // Merge sub-ranges k and k+1 if they are adjacent
+  static void mergeNext(LiveRange r, int k) {
+    if (k+1 >= r.count || r.to[k] + 1 < r.from[k+1])
+      return;
+    r.to[k] = r.to[k+1];
+    System.arraycopy(r.from, k+2, r.from, k+1, r.count-k-2);
+    System.arraycopy(r.to, k+2, r.to, k+1, r.count-k-2);
+    r.count--;
   }
 
 }
@@ -20,11 +20,16 @@ public class RegAlloc {
   static final X86.Reg tempReg2 = X86.R11;
 
   // Allocate IR1.Ids and IR1.Temps to X86.Regs using the linear scan
-  // algorithm.
+  // algorithm, over live ranges with holes (see Liveness.LiveRange).
   // - If an Id or Temp is determined to be dead (e.g. a unsed param), 
   //   then no register will be assigned to it.
+  // - A range's register is free for other ranges inside its holes.
+  // - When registers run out, a range is spilled: it lives in a stack
+  //   slot (recorded in spillMap, as a slot number) for its whole
+  //   lifetime. Ranges that don't intersect share slots.
   // 
-  static Map<IR1.Dest,X86.Reg> linearScan(IR1.Func func) throws Exception {
+  static Map<IR1.Dest,X86.Reg> linearScan(IR1.Func func,
+					  Map<IR1.Dest,Integer> spillMap) throws Exception {
 
     // register mappings (to be returned to caller)
     Map<IR1.Dest,X86.Reg> regMap = new HashMap<IR1.Dest,X86.Reg>();
@@ -33,9 +38,7 @@ public class RegAlloc {
     Map<IR1.Dest,X86.Reg> preference = new HashMap<IR1.Dest,X86.Reg>();
 
     // liveness information for Temps and Ids 
-    Map<IR1.Dest,Liveness.Interval> liveIntervals
-      = Liveness.calculateLiveIntervals(func);
-    int liveCount = liveIntervals.size();
+    List<Liveness.LiveRange> liveRanges = Liveness.calculateLiveRanges(func);
 
     // Computing preferences
     //-------------------------------------------------------------------
@@ -54,7 +57,7 @@ public class RegAlloc {
       throw new RegAllocException("Func has too many args: " + paramCount);
     }
     for (int i = 0; i < paramCount; i++)  
-      preference.put(new IR1.Id(func.params[i]), X86.argRegs[i]); 
+      preference.put(func.syms[i], X86.argRegs[i]); 
 		     
     for (IR1.Inst c: func.code) {
       if (c instanceof IR1.Call) {
@@ -88,8 +91,8 @@ public class RegAlloc {
     // Linear Scan Allocation
     //-------------------------------------------------------------------
     // Keep track of available registers.
-    // Does not handle spilling (If registers run out, simply leave Id 
-    // or Temp unassigned.
+    // If registers run out, spill the range that is cheapest to keep
+    // in memory (see spillCost()).
 
     // Prepare an array of assignable registers
     //
@@ -100,111 +103,198 @@ public class RegAlloc {
     regAvailable[tempReg1.r] = false;
     regAvailable[tempReg2.r] = false;
       
-    // Build two parallel lists describing live intervals sorted by
-    // start point
+    // Sort the live ranges by start point
     //
-    List<Integer> liveStarts = new ArrayList<Integer>(liveCount);
-    List<IR1.Dest> liveValues = new ArrayList<IR1.Dest>(liveCount);   
-    for (Map.Entry<IR1.Dest,Liveness.Interval> me: liveIntervals.entrySet()) {
-      IR1.Dest t = me.getKey();
-      Liveness.Interval n = me.getValue();
-      int ip = insertionPoint(liveStarts, n.start);
-      liveStarts.add(ip, n.start);
-      liveValues.add(ip, t);
-    }
+    List<Liveness.LiveRange> liveValues = new ArrayList<Liveness.LiveRange>(liveRanges);
+    Collections.sort(liveValues, byStart);
+
+    // Count the calls and DIVs up to each position
+    //
+    int[] calls = callCounts(func);
     
-    // Active intervals are maintained as two parallel lists, sorted
-    // by end point
+    // Active ranges cover the current position, and inactive ones are
+    // in a hole; both hold their register. Active ranges are kept in
+    // a heap by end point. (Each active range holds a distinct
+    // register, so there are few of them.)
     //
-    List<Integer> activeEnds = new ArrayList<Integer>(liveCount); 
-    List<X86.Reg> activeRegs = new ArrayList<X86.Reg>(liveCount); 
-    Iterator<Integer> it = liveStarts.iterator();
-    Iterator<IR1.Dest> pt = liveValues.iterator();
-    while (it.hasNext() && pt.hasNext()) {
-      int start = it.next();
-      IR1.Dest t = pt.next();
-    expire: {
-	Iterator<Integer> jt = activeEnds.iterator();
-	Iterator<X86.Reg> kt = activeRegs.iterator(); 
-	while (jt.hasNext() && kt.hasNext()) {
-	  int end = jt.next();
-	  if (end >= start)
-	    break expire;
-	  X86.Reg reg = kt.next();
-	  jt.remove();
+    PriorityQueue<Liveness.LiveRange> activeRanges
+      = new PriorityQueue<Liveness.LiveRange>(X86.allRegs.length, byEnd); 
+    List<Liveness.LiveRange> inactiveRanges = new ArrayList<Liveness.LiveRange>(); 
+    List<Liveness.LiveRange> spilled = new ArrayList<Liveness.LiveRange>(); 
+    for (Liveness.LiveRange n: liveValues) {
+      int start = n.start();
+      IR1.Dest t = n.dest;
+      while (!activeRanges.isEmpty() && activeRanges.peek().end() < start)
+	activeRanges.poll();
+      // active ranges now in a hole become inactive, and inactive ones
+      // that cover start again active
+      List<Liveness.LiveRange> resumed = new ArrayList<Liveness.LiveRange>();
+      for (Iterator<Liveness.LiveRange> kt = inactiveRanges.iterator(); kt.hasNext(); ) {
+	Liveness.LiveRange r = kt.next();
+	if (r.end() < start || r.covers(start)) {
 	  kt.remove();
-	  regAvailable[reg.r] = true;
+	  if (r.end() >= start)
+	    resumed.add(r);
 	}
       }
+      for (Iterator<Liveness.LiveRange> kt = activeRanges.iterator(); kt.hasNext(); ) {
+	Liveness.LiveRange r = kt.next();
+	if (!r.covers(start)) {
+	  kt.remove();
+	  inactiveRanges.add(r);
+	}
+      }
+      activeRanges.addAll(resumed);
+      // registers of active ranges are taken, and so are those of
+      // inactive ranges that n overlaps
+      boolean[] canUse = regAvailable.clone();
+      boolean[] blocked = new boolean[regAvailable.length];
+      for (Liveness.LiveRange r: activeRanges)
+	canUse[regMap.get(r.dest).r] = false;
+      for (Liveness.LiveRange r: inactiveRanges)
+	if (r.intersects(n))
+	  canUse[regMap.get(r.dest).r] = blocked[regMap.get(r.dest).r] = true;
+      for (int i = 0; i < canUse.length; i++)
+	canUse[i] &= !blocked[i];
+      boolean crossesCall = rangeContainsCall(calls, n);
       // try to find a register
       X86.Reg treg = null;
     find: {
-	Liveness.Interval n = liveIntervals.get(t);
-	if (intervalContainsCall(func, n)) {
+	if (crossesCall) {
 	  // insist on a callee-save reg (ignoring any preference)
 	  for (X86.Reg reg: X86.calleeSaveRegs) 
-	    if (regAvailable[reg.r]) {
+	    if (canUse[reg.r]) {
 	      treg = reg;
 	      break find;
 	    }
 	} else {
 	  // try first for a preference register (always caller-save)
 	  X86.Reg preg = preference.get(t);
-	  if (preg !=null && regAvailable[preg.r]) {
+	  if (preg !=null && canUse[preg.r]) {
 	    treg = preg;
 	    break find;
 	  }
 	  // try for arbitrary caller-save reg
 	  for (X86.Reg reg: X86.callerSaveRegs) 
-	    if (regAvailable[reg.r]) {
+	    if (canUse[reg.r]) {
 	      treg = reg;
 	      break find;
 	    }
 	  // otherwise, try a callee-save 
 	  for (X86.Reg reg: X86.calleeSaveRegs) 
-	    if (regAvailable[reg.r]) {
+	    if (canUse[reg.r]) {
 	      treg = reg;
 	      break find;
 	    }
 	}
-	// couldn't find a register
-	throw new RegAllocException("Oops: out of registers");
+	// couldn't find a register: spill n, or an active range whose
+	// register n can take instead, whichever is cheaper
+	Liveness.LiveRange victim = n;
+	for (Liveness.LiveRange r: activeRanges) {
+	  X86.Reg reg = regMap.get(r.dest);
+	  if (blocked[reg.r] || (crossesCall && !isCalleeSave(reg)))
+	    continue;
+	  double c = spillCost(r), vc = spillCost(victim);
+	  if (c < vc || (c == vc && r.end() > victim.end()))
+	    victim = r;
+	}
+	spilled.add(victim);
+	if (victim == n)
+	  continue;
+	treg = regMap.remove(victim.dest);
+	activeRanges.remove(victim);
       }
       // found a register; record it
-      regAvailable[treg.r] = false;
-      int end = liveIntervals.get(t).end;
-      int ip = insertionPoint(activeEnds, end);
-      activeEnds.add(ip, end);
-      activeRegs.add(ip, treg);
+      activeRanges.add(n);
       regMap.put(t, treg);
     }
+
+    // Assign stack slots to the spilled ranges, in order of start
+    // point; a range takes the first slot whose ranges it doesn't
+    // intersect (ranges that end before it can't intersect it, nor
+    // any later one, so they are dropped from the slots)
+    //
+    Collections.sort(spilled, byStart);
+    List<List<Liveness.LiveRange>> slots = new ArrayList<List<Liveness.LiveRange>>();
+    for (Liveness.LiveRange n: spilled) {
+      int slot = 0;
+    search:
+      for (; slot < slots.size(); slot++) {
+	for (Iterator<Liveness.LiveRange> kt = slots.get(slot).iterator(); kt.hasNext(); ) {
+	  Liveness.LiveRange r = kt.next();
+	  if (r.end() < n.start())
+	    kt.remove();
+	  else if (r.intersects(n))
+	    continue search;
+	}
+	break;
+      }
+      if (slot == slots.size())
+	slots.add(new ArrayList<Liveness.LiveRange>());
+      slots.get(slot).add(n);
+      spillMap.put(n.dest, slot);
+    }
+
     // return the register mappings
     return regMap;
   }
 
-  // Return true if specified interval includes an IR instruction
-  // that will cause an X86.call (or invoke an X86.divide)
+  // Cost of keeping a range in memory: its uses and defs per position
+  // covered, so long, rarely used ranges go first
   //
-  private static boolean intervalContainsCall(IR1.Func func, Liveness.Interval n) {
-    for (int i = n.start+1; i <= n.end; i++)
-      if (func.code[i-1] instanceof IR1.Call ||
-	  (func.code[i-1] instanceof IR1.Binop && 
-	   ((IR1.Binop) func.code[i-1]).op == IR1.AOP.DIV))
+  private static double spillCost(Liveness.LiveRange n) {
+    int size = 0;
+    for (int k = 0; k < n.count; k++)
+      size += n.to[k] - n.from[k] + 1;
+    return (double) (n.nuses + n.ndefs) / size;
+  }
+
+  private static boolean isCalleeSave(X86.Reg reg) {
+    for (X86.Reg r: X86.calleeSaveRegs)
+      if (r == reg)
 	return true;
     return false;
   }
 
-  // Find insertion point for x in a, assuming a is sorted in natural
-  // order
+  private static final Comparator<Liveness.LiveRange> byStart
+    = new Comparator<Liveness.LiveRange>() {
+	public int compare(Liveness.LiveRange a, Liveness.LiveRange b) {
+	  return a.start() - b.start();
+	}
+      };
+
+  private static final Comparator<Liveness.LiveRange> byEnd
+    = new Comparator<Liveness.LiveRange>() {
+	public int compare(Liveness.LiveRange a, Liveness.LiveRange b) {
+	  return a.end() - b.end();
+	}
+      };
+
+  // Number of IR instructions up to each position that will cause an
+  // X86.call (or invoke an X86.divide): calls[i] counts Insts 1..i
   //
-  private static int insertionPoint(List<Integer> a, int x) {
-    int i = 0;
-    for (Integer y: a) {
-      if (x <= y)
-	return i;
-      i++;
+  private static int[] callCounts(IR1.Func func) {
+    int[] calls = new int[func.code.length + 1];
+    for (int i = 1; i <= func.code.length; i++) {
+      IR1.Inst c = func.code[i-1];
+      calls[i] = calls[i-1];
+      if (c instanceof IR1.Call ||
+	  (c instanceof IR1.Binop && ((IR1.Binop) c).op == IR1.AOP.DIV))
+	calls[i]++;
     }
-    return i;
+    return calls;
+  }
+
+  // Return true if specified range includes an IR instruction
+  // that will cause an X86.call (or invoke an X86.divide)
+  // - the value is live across Inst i if it is live both before and
+  //   after it, i.e. i is in (from,to] of some sub-range
+  //
+  private static boolean rangeContainsCall(int[] calls, Liveness.LiveRange n) {
+    for (int k = 0; k < n.count; k++)
+      if (calls[n.to[k]] > calls[n.from[k]])
+	return true;
+    return false;
   }
 
 }
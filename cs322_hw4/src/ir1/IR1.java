@@ -34,6 +34,7 @@ public class IR1 {
     public final String[] params;
     public final String[] locals;
     public final Inst[] code;
+    public Dest[] syms;		// interned Ids and Temps, by slot (see Symbols)
 
     public Func(String n, String[] p, String[] l, Inst[] c) {
       name=n; params=p; locals=l; code=c; 
@@ -221,6 +222,7 @@ public class IR1 {
   public static class Label {
     static int labelnum=0;
     public String name;
+    public int target = -1;	// index of its LabelDec, set by Symbols
 
     public Label() { name = "L" + labelnum++; }
     public Label(String s) { name = s; }
@@ -260,13 +262,13 @@ public class IR1 {
 
   public static class Id implements Src, Dest  {
     public final String name;
+    public int slot = -1;	// set by Symbols
 
     public Id(String s) { name=s; }
     public String toString() { return name; }
 
-    public boolean equals(Object l) {
-      return (l instanceof Id && (((Id) l).name.equals(name)));
-    }
+    // Ids are interned (see Symbols), so equality is identity; the
+    // hash stays name-based, which keeps hash order deterministic
     public int hashCode() {  
       return name.hashCode(); 
     }
@@ -275,14 +277,13 @@ public class IR1 {
   public static class Temp implements Src, Dest  {
     private static int cnt=0;
     public final int num;
+    public int slot = -1;	// set by Symbols
 
     public Temp() { num = ++Temp.cnt; }
     public Temp(int n) { num=n; }
     public String toString() { return "t" + num; }
 
-    public boolean equals(Object l) {
-      return (l instanceof Temp && (((Temp) l).num == num));
-    }
+    // interned, like Ids
     public int hashCode() {  
       return num; 
     }
@@ -0,0 +1,88 @@
+// Symbol table of one IR1 function.
+//
+// A loader (Parser, IR1Binary.Reader) interns a function's operands
+// and labels through one of these as it builds the function, so that
+// each distinct Id, Temp and Label is a single IR1 node:
+//  - Ids and Temps compare by identity, and are numbered densely
+//    (their slot): params first, in order, then locals, then the rest
+//    in order of first use. Func.syms lists them by slot, so later
+//    passes can keep per-operand data in arrays.
+//  - Labels are resolved to the index of their LabelDec in the
+//    function's code (their target; -1 if the label is never defined).
+// The names themselves are interned per program by the loader.
+//
+package ir1;
+import java.util.*;
+
+public class Symbols {
+  final HashMap<String,IR1.Id> ids = new HashMap<String,IR1.Id>();
+  final HashMap<Integer,IR1.Temp> temps = new HashMap<Integer,IR1.Temp>();
+  final HashMap<String,IR1.Label> labels = new HashMap<String,IR1.Label>();
+  final List<IR1.Dest> syms = new ArrayList<IR1.Dest>();
+
+  public Symbols(String[] params, String[] locals) {
+    for (String p: params) {
+      if (ids.containsKey(p))
+	throw new IllegalArgumentException("Duplicate parameter " + p);
+      id(p);
+    }
+    for (String l: locals)
+      id(l);
+  }
+
+  public IR1.Id id(String name) {
+    IR1.Id id = ids.get(name);
+    if (id == null) {
+      id = new IR1.Id(name);
+      id.slot = syms.size();
+      syms.add(id);
+      ids.put(name, id);
+    }
+    return id;
+  }
+
+  public IR1.Temp temp(int num) {
+    IR1.Temp t = temps.get(num);
+    if (t == null) {
+      t = new IR1.Temp(num);
+      t.slot = syms.size();
+      syms.add(t);
+      temps.put(num, t);
+    }
+    return t;
+  }
+
+  public IR1.Label label(String name) {
+    IR1.Label l = labels.get(name);
+    if (l == null) {
+      l = new IR1.Label(name);
+      labels.put(name, l);
+    }
+    return l;
+  }
+
+  // The LabelDec at code index i declares name (a later declaration
+  // of the same name wins)
+  //
+  public IR1.Label define(String name, int i) {
+    IR1.Label l = label(name);
+    l.target = i;
+    return l;
+  }
+
+  // The finished function
+  //
+  public IR1.Func func(String name, String[] params, String[] locals,
+		       IR1.Inst[] code) {
+    IR1.Func f = new IR1.Func(name, params, locals, code);
+    f.syms = syms.toArray(new IR1.Dest[0]);
+    return f;
+  }
+
+  // Slot of an interned Id or Temp
+  //
+  public static int slot(IR1.Dest d) {
+    return d instanceof IR1.Temp ? ((IR1.Temp) d).slot : ((IR1.Id) d).slot;
+  }
+
+}